@@ -0,0 +1,416 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.http.client.utils.DateUtils;
+
+import js.base.BaseObject;
+import js.file.Files;
+import js.json.JSMap;
+import js.webtools.WebRequest.Verb;
+
+/**
+ * A WebRequestExecutor that caches the responses to GET requests, and passes
+ * other requests through to another executor.
+ * 
+ * Responses are held in a bounded in-memory LRU cache and, optionally, in a
+ * directory on disk, whose total size is also bounded (the least recently
+ * written files are deleted first). The Cache-Control and Expires headers determine how long a
+ * response is fresh; stale responses that have an ETag or Last-Modified
+ * validator are revalidated with a conditional GET. Non-GET requests invalidate
+ * any cached response for their uri.
+ * 
+ * To use it, either install it as a RequestFilter, or set it as a request's
+ * executor. The delegate executor is called directly (bypassing any filters)
+ * and must report response information (see WebRequest.setResponseInfo()) for
+ * responses to be cached.
+ */
+public final class CachingRequestExecutor extends BaseObject implements WebRequestExecutor {
+
+  public CachingRequestExecutor(WebRequestExecutor delegate) {
+    mDelegate = checkNotNull(delegate);
+  }
+
+  /**
+   * Set the maximum number of responses held in memory
+   */
+  public CachingRequestExecutor withMaxEntries(int maxEntries) {
+    checkArgument(maxEntries > 0);
+    mMaxEntries = maxEntries;
+    return this;
+  }
+
+  /**
+   * Set the maximum length of a response body that will be cached
+   */
+  public CachingRequestExecutor withMaxEntryLength(int maxLength) {
+    checkArgument(maxLength > 0);
+    mMaxEntryLength = maxLength;
+    return this;
+  }
+
+  /**
+   * Store responses in a directory as well as in memory, so they survive
+   * eviction from memory (and restarts)
+   */
+  public CachingRequestExecutor withDiskDirectory(File directory) {
+    Files.S.mkdirs(directory);
+    synchronized (this) {
+      mDiskDirectory = directory;
+      mDiskBytes = 0;
+      File[] files = directory.listFiles();
+      if (files != null)
+        for (File f : files)
+          mDiskBytes += f.length();
+    }
+    return this;
+  }
+
+  /**
+   * Set the maximum total size of the files in the disk directory
+   */
+  public synchronized CachingRequestExecutor withMaxDiskBytes(long maxBytes) {
+    checkArgument(maxBytes > 0);
+    mMaxDiskBytes = maxBytes;
+    return this;
+  }
+
+  @Override
+  public String makeRequest(WebRequest request) {
+    String key = cacheKey(request);
+    if (request.getVerb() != Verb.GET) {
+      remove(key);
+      return mDelegate.makeRequest(request);
+    }
+
+    long currentTime = System.currentTimeMillis();
+    CacheEntry entry = get(key);
+    if (entry != null && entry.expiresMs > currentTime) {
+      log("fresh cached response for:", request.uri());
+      request.setResponseInfo(entry.responseInfo());
+      return entry.body;
+    }
+
+    // A stale entry that can't be revalidated is of no further use
+    if (entry != null && !entry.hasValidator()) {
+      remove(key);
+      entry = null;
+    }
+
+    if (entry != null && entry.hasValidator()) {
+      List<String> conditionalHeaders = arrayList();
+      if (entry.etag != null) {
+        conditionalHeaders.add("If-None-Match");
+        conditionalHeaders.add(entry.etag);
+      }
+      if (entry.lastModified != null) {
+        conditionalHeaders.add("If-Modified-Since");
+        conditionalHeaders.add(entry.lastModified);
+      }
+      WebRequest conditional = request.sentCopyWithHeaders(conditionalHeaders);
+      String body = mDelegate.makeRequest(conditional);
+      WebResponseInfo info = conditional.storedResponseInfo();
+      if (info != null && info.statusCode() == SC_NOT_MODIFIED) {
+        log("revalidated cached response for:", request.uri());
+        entry = entry.refreshed(info, currentTime);
+        put(key, entry);
+        request.setResponseInfo(entry.responseInfo());
+        return entry.body;
+      }
+      request.setResponseInfo(info);
+      store(key, body, info, currentTime);
+      return body;
+    }
+
+    String body = mDelegate.makeRequest(request);
+    store(key, body, request.storedResponseInfo(), currentTime);
+    return body;
+  }
+
+  @Override
+  public boolean canRetryAfter(Throwable throwable) {
+    return mDelegate.canRetryAfter(throwable);
+  }
+
+  /**
+   * Discard all cached responses
+   */
+  public void clear() {
+    synchronized (mMemoryCache) {
+      mMemoryCache.clear();
+    }
+    if (mDiskDirectory != null) {
+      synchronized (this) {
+        File[] files = mDiskDirectory.listFiles();
+        if (files != null)
+          for (File f : files)
+            Files.S.deleteFile(f);
+        mDiskBytes = 0;
+      }
+    }
+  }
+
+  // ------------------------------------------------------------------
+  // Cache entries
+  // ------------------------------------------------------------------
+
+  private static final int SC_NOT_MODIFIED = 304;
+
+  private static String cacheKey(WebRequest request) {
+    StringBuilder sb = new StringBuilder(request.uri().toString());
+    for (String s : request.getHeaders()) {
+      sb.append('\n');
+      sb.append(s);
+    }
+    if (request.getUserName() != null) {
+      // Include the credentials, so callers with the same user name but different
+      // passwords don't share responses; hashed, so the key doesn't hold the password
+      sb.append('\n');
+      sb.append(DigestUtils.sha256Hex(request.getUserName() + ":" + nullToEmpty(request.getPassword())));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Store a response in the cache, if it is cacheable
+   */
+  private void store(String key, String body, WebResponseInfo info, long currentTime) {
+    if (info == null || info.statusCode() != WebTools.SC_OK || body.length() > mMaxEntryLength)
+      return;
+    if ("*".equals(info.header("Vary")))
+      return;
+    String cacheControl = nullToEmpty(info.header("Cache-Control")).toLowerCase();
+    if (cacheControl.contains("no-store"))
+      return;
+    CacheEntry entry = new CacheEntry(body, info.headers(), currentTime);
+    if (!entry.hasValidator() && entry.expiresMs <= currentTime)
+      return;
+    put(key, entry);
+  }
+
+  private CacheEntry get(String key) {
+    CacheEntry entry;
+    synchronized (mMemoryCache) {
+      entry = mMemoryCache.get(key);
+    }
+    if (entry == null && mDiskDirectory != null) {
+      File file = diskFile(key);
+      if (file.exists()) {
+        try {
+          entry = CacheEntry.parse(new JSMap(Files.readString(file)));
+          synchronized (mMemoryCache) {
+            mMemoryCache.put(key, entry);
+          }
+        } catch (Throwable t) {
+          pr("*** failed to read cached response:", file, INDENT, t);
+          deleteFromDisk(file);
+        }
+      }
+    }
+    return entry;
+  }
+
+  private void put(String key, CacheEntry entry) {
+    synchronized (mMemoryCache) {
+      mMemoryCache.put(key, entry);
+    }
+    if (mDiskDirectory != null)
+      writeToDisk(diskFile(key), entry.toJson().toString());
+  }
+
+  private void remove(String key) {
+    synchronized (mMemoryCache) {
+      mMemoryCache.remove(key);
+    }
+    if (mDiskDirectory != null)
+      deleteFromDisk(diskFile(key));
+  }
+
+  private File diskFile(String key) {
+    return new File(mDiskDirectory, DigestUtils.sha1Hex(key) + ".json");
+  }
+
+  // ------------------------------------------------------------------
+  // Disk usage
+  // ------------------------------------------------------------------
+
+  private synchronized void writeToDisk(File file, String content) {
+    // (the length of a nonexistent file is zero)
+    mDiskBytes -= file.length();
+    Files.S.writeString(file, content);
+    mDiskBytes += file.length();
+    if (mDiskBytes > mMaxDiskBytes)
+      trimDisk();
+  }
+
+  private synchronized void deleteFromDisk(File file) {
+    if (!file.exists())
+      return;
+    mDiskBytes -= file.length();
+    Files.S.deleteFile(file);
+  }
+
+  /**
+   * Delete the least recently written files until the directory is well below
+   * its size limit, so this isn't done on every write
+   */
+  private void trimDisk() {
+    File[] files = mDiskDirectory.listFiles();
+    if (files == null)
+      return;
+    long[] modified = new long[files.length];
+    Integer[] order = new Integer[files.length];
+    for (int i = 0; i < files.length; i++) {
+      modified[i] = files[i].lastModified();
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+    long target = mMaxDiskBytes - mMaxDiskBytes / 4;
+    int deleted = 0;
+    for (int i : order) {
+      if (mDiskBytes <= target)
+        break;
+      mDiskBytes -= files[i].length();
+      Files.S.deleteFile(files[i]);
+      deleted++;
+    }
+    log("deleted", deleted, "cached responses from disk; bytes remaining:", mDiskBytes);
+  }
+
+  private static final class CacheEntry {
+
+    CacheEntry(String body, List<String> headers, long storedMs) {
+      this.body = body;
+      this.headers = headers;
+      this.storedMs = storedMs;
+      this.etag = header("ETag");
+      this.lastModified = header("Last-Modified");
+      this.expiresMs = determineExpiration(storedMs);
+    }
+
+    static CacheEntry parse(JSMap m) {
+      List<String> headers = WebResponseInfo.parseHeadersString(m.opt("headers", ""));
+      return new CacheEntry(m.opt("body", ""), headers, m.opt("stored", 0L));
+    }
+
+    JSMap toJson() {
+      return map().put("body", body).put("headers", WebResponseInfo.headersString(headers)).put("stored",
+          storedMs);
+    }
+
+    boolean hasValidator() {
+      return etag != null || lastModified != null;
+    }
+
+    WebResponseInfo responseInfo() {
+      return new WebResponseInfo(WebTools.SC_OK, headers, body.length(), 0);
+    }
+
+    /**
+     * Construct a copy of this entry, updated with the headers of a 304 (not
+     * modified) response
+     */
+    CacheEntry refreshed(WebResponseInfo notModifiedInfo, long currentTime) {
+      List<String> newHeaders = arrayList();
+      List<String> updates = notModifiedInfo.headers();
+      for (int i = 0; i < headers.size(); i += 2) {
+        String name = headers.get(i);
+        if (notModifiedInfo.header(name) != null)
+          continue;
+        newHeaders.add(name);
+        newHeaders.add(headers.get(i + 1));
+      }
+      newHeaders.addAll(updates);
+      return new CacheEntry(body, newHeaders, currentTime);
+    }
+
+    private String header(String name) {
+      for (int i = 0; i < headers.size(); i += 2)
+        if (headers.get(i).equalsIgnoreCase(name))
+          return headers.get(i + 1).trim();
+      return null;
+    }
+
+    /**
+     * Determine when the response stops being fresh, from its Cache-Control or
+     * Expires header
+     */
+    private long determineExpiration(long storedMs) {
+      String cacheControl = nullToEmpty(header("Cache-Control")).toLowerCase();
+      if (cacheControl.contains("no-cache"))
+        return storedMs;
+      for (String directive : split(cacheControl, ',')) {
+        directive = directive.trim();
+        if (directive.startsWith("max-age=")) {
+          try {
+            long maxAgeSeconds = Long.parseLong(directive.substring("max-age=".length()).trim());
+            return storedMs + maxAgeSeconds * 1000;
+          } catch (NumberFormatException e) {
+            return storedMs;
+          }
+        }
+      }
+      String expires = header("Expires");
+      if (expires != null) {
+        Date date = DateUtils.parseDate(expires);
+        if (date != null)
+          return date.getTime();
+      }
+      return storedMs;
+    }
+
+    final String body;
+    final List<String> headers;
+    final long storedMs;
+    final long expiresMs;
+    final String etag;
+    final String lastModified;
+  }
+
+  private final WebRequestExecutor mDelegate;
+  private int mMaxEntries = 1000;
+  private int mMaxEntryLength = 1_000_000;
+  private File mDiskDirectory;
+  private long mMaxDiskBytes = 100_000_000;
+  private long mDiskBytes;
+
+  private final Map<String, CacheEntry> mMemoryCache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+      return size() > mMaxEntries;
+    }
+  };
+}
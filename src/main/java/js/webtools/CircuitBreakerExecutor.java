@@ -0,0 +1,354 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import js.base.BaseObject;
+import js.base.DateTimeTools;
+import js.json.JSMap;
+
+/**
+ * A WebRequestExecutor that protects against failing or slow upstream hosts,
+ * passing requests through to another executor.
+ * 
+ * For each host (and port), it maintains a circuit breaker, which tracks the
+ * outcomes of the most recent requests. If the proportion of failed (or slow)
+ * requests exceeds a threshold, the circuit opens, and requests to that host
+ * fail immediately (i.e., the WebRequest's result map has an error) for a
+ * period. After that, a single trial request is allowed through; if it
+ * succeeds, the circuit closes again.
+ * 
+ * It also acts as a bulkhead, limiting the number of requests in flight to each
+ * host, so that one slow host can't tie up every thread.
+ * 
+ * This class is threadsafe
+ */
+public final class CircuitBreakerExecutor extends BaseObject implements WebRequestExecutor {
+
+  public CircuitBreakerExecutor(WebRequestExecutor delegate) {
+    mDelegate = checkNotNull(delegate);
+  }
+
+  // ------------------------------------------------------------------
+  // Configuration
+  // ------------------------------------------------------------------
+
+  /**
+   * Set the number of recent requests whose outcomes are considered
+   */
+  public CircuitBreakerExecutor withWindowSize(int windowSize) {
+    checkArgument(windowSize > 0);
+    checkState(mHosts.isEmpty(), "requests already made");
+    mWindowSize = windowSize;
+    mMinimumCalls = Math.min(mMinimumCalls, windowSize);
+    return this;
+  }
+
+  /**
+   * Set the number of requests that must be recorded before the circuit can
+   * open
+   */
+  public CircuitBreakerExecutor withMinimumCalls(int minimumCalls) {
+    checkArgument(minimumCalls > 0 && minimumCalls <= mWindowSize);
+    mMinimumCalls = minimumCalls;
+    return this;
+  }
+
+  /**
+   * Set the proportion (0...1) of failed requests that opens the circuit
+   */
+  public CircuitBreakerExecutor withErrorRateThreshold(double rate) {
+    checkArgument(rate > 0 && rate <= 1);
+    mErrorRateThreshold = rate;
+    return this;
+  }
+
+  /**
+   * Treat requests that take at least some number of milliseconds as slow;
+   * open the circuit if the proportion (0...1) of slow requests reaches a
+   * threshold
+   */
+  public CircuitBreakerExecutor withSlowCallThreshold(long durationMs, double rate) {
+    checkArgument(durationMs > 0 && rate > 0 && rate <= 1);
+    mSlowCallMs = durationMs;
+    mSlowCallRateThreshold = rate;
+    return this;
+  }
+
+  /**
+   * Set how long the circuit stays open before a trial request is allowed
+   */
+  public CircuitBreakerExecutor withOpenDuration(long durationMs) {
+    checkArgument(durationMs > 0);
+    mOpenDurationMs = durationMs;
+    return this;
+  }
+
+  /**
+   * Limit the number of requests in flight to any one host. A request that
+   * can't start within the wait time fails immediately
+   */
+  public CircuitBreakerExecutor withMaxConcurrent(int maxConcurrent, long maxWaitMs) {
+    checkArgument(maxConcurrent > 0 && maxWaitMs >= 0);
+    checkState(mHosts.isEmpty(), "requests already made");
+    mMaxConcurrent = maxConcurrent;
+    mMaxWaitMs = maxWaitMs;
+    return this;
+  }
+
+  // ------------------------------------------------------------------
+  // WebRequestExecutor interface
+  // ------------------------------------------------------------------
+
+  @Override
+  public String makeRequest(WebRequest request) {
+    return guard(request, () -> mDelegate.makeRequest(request));
+  }
+
+  @Override
+  public void makeRequest(WebRequest request, ResponseBodyHandler handler) {
+    guard(request, () -> {
+      mDelegate.makeRequest(request, handler);
+      return null;
+    });
+  }
+
+  @Override
+  public CompletableFuture<String> makeRequestAsync(WebRequest request, Executor blockingExecutor) {
+    HostState host = hostState(request);
+    boolean trial = host.admit(request, 0);
+    long startTime = System.currentTimeMillis();
+    CompletableFuture<String> future;
+    try {
+      future = mDelegate.makeRequestAsync(request, blockingExecutor);
+    } catch (Throwable t) {
+      future = CompletableFuture.failedFuture(t);
+    }
+    return future
+        .whenComplete((result, throwable) -> host.complete(request, throwable == null, startTime, trial));
+  }
+
+  @Override
+  public boolean canRetryAfter(Throwable throwable) {
+    return mDelegate.canRetryAfter(throwable);
+  }
+
+  /**
+   * Construct a json map describing the state of each host's circuit
+   */
+  @Override
+  public JSMap toJson() {
+    JSMap m = super.toJson();
+    for (Map.Entry<String, HostState> ent : mHosts.entrySet())
+      m.put(ent.getKey(), ent.getValue().toJson());
+    return m;
+  }
+
+  // ------------------------------------------------------------------
+
+  private <T> T guard(WebRequest request, Supplier<T> operation) {
+    HostState host = hostState(request);
+    boolean trial = host.admit(request, mMaxWaitMs);
+    long startTime = System.currentTimeMillis();
+    boolean success = false;
+    try {
+      T result = operation.get();
+      success = true;
+      return result;
+    } finally {
+      host.complete(request, success, startTime, trial);
+    }
+  }
+
+  private HostState hostState(WebRequest request) {
+    return mHosts.computeIfAbsent(request.hostKey(), HostState::new);
+  }
+
+  private enum CircuitState {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final class HostState {
+
+    HostState(String host) {
+      mHost = host;
+      mPermits = new Semaphore(mMaxConcurrent);
+      mOutcomes = new byte[mWindowSize];
+    }
+
+    /**
+     * Acquire permission for a request to proceed, or throw an exception
+     * 
+     * @return true if the request is the trial request of a half-open circuit
+     */
+    boolean admit(WebRequest request, long maxWaitMs) {
+      boolean trial = false;
+      synchronized (this) {
+        long currentTime = System.currentTimeMillis();
+        if (mState == CircuitState.OPEN) {
+          if (currentTime < mOpenUntil)
+            throw badState("circuit open for host:", mHost);
+          log("circuit half-open for host:", mHost);
+          mState = CircuitState.HALF_OPEN;
+          mTrialInFlight = false;
+        }
+        if (mState == CircuitState.HALF_OPEN) {
+          if (mTrialInFlight)
+            throw badState("circuit open for host:", mHost, "(trial request in progress)");
+          mTrialInFlight = true;
+          trial = true;
+        }
+      }
+      boolean acquired;
+      try {
+        acquired = mPermits.tryAcquire(maxWaitMs, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        acquired = false;
+      }
+      if (!acquired) {
+        if (trial) {
+          synchronized (this) {
+            mTrialInFlight = false;
+          }
+        }
+        throw badState("too many concurrent requests for host:", mHost);
+      }
+      return trial;
+    }
+
+    /**
+     * Release a request's permit, and record its outcome
+     * 
+     * @param trial
+     *          true if admit() reported it as the trial request
+     */
+    void complete(WebRequest request, boolean success, long startTime, boolean trial) {
+      mPermits.release();
+      long currentTime = System.currentTimeMillis();
+      WebResponseInfo info = request.storedResponseInfo();
+      if (success && info != null && info.statusCode() >= 500)
+        success = false;
+      boolean slow = mSlowCallMs > 0 && currentTime - startTime >= mSlowCallMs;
+
+      synchronized (this) {
+        if (mState == CircuitState.HALF_OPEN) {
+          // Only the trial request decides the outcome; a request admitted before the
+          // circuit opened may complete while it is half-open
+          if (!trial)
+            return;
+          mTrialInFlight = false;
+          if (success && !slow) {
+            log("circuit closed for host:", mHost);
+            mState = CircuitState.CLOSED;
+            resetWindow();
+          } else
+            open(currentTime);
+          return;
+        }
+        if (mState != CircuitState.CLOSED)
+          return;
+
+        int slot = mCount % mOutcomes.length;
+        if (mCount >= mOutcomes.length) {
+          byte old = mOutcomes[slot];
+          if ((old & FAILED) != 0)
+            mFailures--;
+          if ((old & SLOW) != 0)
+            mSlowCalls--;
+        }
+        byte outcome = (byte) ((success ? 0 : FAILED) | (slow ? SLOW : 0));
+        mOutcomes[slot] = outcome;
+        if (!success)
+          mFailures++;
+        if (slow)
+          mSlowCalls++;
+        mCount++;
+
+        int calls = Math.min(mCount, mOutcomes.length);
+        if (calls >= mMinimumCalls) {
+          if (mFailures >= calls * mErrorRateThreshold
+              || (mSlowCallMs > 0 && mSlowCalls >= calls * mSlowCallRateThreshold))
+            open(currentTime);
+        }
+      }
+    }
+
+    private void open(long currentTime) {
+      alert("circuit opened for host:", mHost, "failures:", mFailures, "slow calls:", mSlowCalls);
+      mState = CircuitState.OPEN;
+      mOpenUntil = currentTime + mOpenDurationMs;
+      resetWindow();
+    }
+
+    private void resetWindow() {
+      mCount = 0;
+      mFailures = 0;
+      mSlowCalls = 0;
+    }
+
+    synchronized JSMap toJson() {
+      return map() //
+          .put("state", mState.name()) //
+          .put("failures", mFailures) //
+          .put("slow_calls", mSlowCalls) //
+          .put("calls", Math.min(mCount, mOutcomes.length)) //
+          .put("available_permits", mPermits.availablePermits());
+    }
+
+    private static final byte FAILED = 1;
+    private static final byte SLOW = 2;
+
+    private final String mHost;
+    private final Semaphore mPermits;
+    private final byte[] mOutcomes;
+    private int mCount;
+    private int mFailures;
+    private int mSlowCalls;
+    private CircuitState mState = CircuitState.CLOSED;
+    private long mOpenUntil;
+    private boolean mTrialInFlight;
+  }
+
+  private final WebRequestExecutor mDelegate;
+  private final Map<String, HostState> mHosts = concurrentHashMap();
+
+  private int mWindowSize = 20;
+  private int mMinimumCalls = 10;
+  private double mErrorRateThreshold = 0.5;
+  private long mSlowCallMs;
+  private double mSlowCallRateThreshold = 1;
+  private long mOpenDurationMs = DateTimeTools.SECONDS(30);
+  private int mMaxConcurrent = 50;
+  private long mMaxWaitMs;
+}
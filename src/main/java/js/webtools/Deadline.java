@@ -0,0 +1,112 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tracks the deadline, if any, for the work being done by the current thread
+ * (e.g., servicing a WebResponse). WebRequests sent by the thread inherit the
+ * deadline, so a chain of service calls is bounded by the original caller's
+ * time budget.
+ */
+public final class Deadline {
+
+  /**
+   * Name of http request header that communicates the time remaining (in
+   * milliseconds) before the caller's deadline
+   */
+  public static final String HEADER_TIME_REMAINING = "X-Request-Timeout-Ms";
+
+  /**
+   * Get the current thread's deadline (in system milliseconds), or zero if it
+   * has none
+   */
+  public static long current() {
+    Long deadline = sCurrent.get();
+    return deadline == null ? 0 : deadline;
+  }
+
+  /**
+   * Set a deadline for the current thread until the returned scope is closed.
+   * If the thread already has an earlier deadline, that one remains in effect
+   * 
+   * @param deadlineMs
+   *          deadline, in system milliseconds; zero if none
+   */
+  public static Scope enter(long deadlineMs) {
+    Long previous = sCurrent.get();
+    if (deadlineMs != 0 && (previous == null || deadlineMs < previous))
+      sCurrent.set(deadlineMs);
+    return new Scope(previous);
+  }
+
+  /**
+   * Restores the previous deadline when closed
+   */
+  public static final class Scope implements AutoCloseable {
+
+    private Scope(Long previous) {
+      mPrevious = previous;
+    }
+
+    @Override
+    public void close() {
+      if (mPrevious == null)
+        sCurrent.remove();
+      else
+        sCurrent.set(mPrevious);
+    }
+
+    private final Long mPrevious;
+  }
+
+  /**
+   * Schedule a task to run (e.g., to abort a request) when a deadline passes
+   */
+  static ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+    return scheduler().schedule(task, delayMs, TimeUnit.MILLISECONDS);
+  }
+
+  private static synchronized ScheduledExecutorService scheduler() {
+    if (sScheduler == null) {
+      sScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "WebRequest deadlines");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return sScheduler;
+  }
+
+  private Deadline() {
+  }
+
+  private static final ThreadLocal<Long> sCurrent = new ThreadLocal<>();
+  private static ScheduledExecutorService sScheduler;
+}
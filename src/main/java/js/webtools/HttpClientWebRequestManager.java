@@ -26,18 +26,32 @@ package js.webtools;
 
 import static js.base.Tools.*;
 
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHost;
 import org.apache.http.client.config.RequestConfig;
-import org.apache.http.client.entity.UrlEncodedFormEntity;
+import org.apache.http.client.entity.GzipCompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
@@ -45,25 +59,279 @@ import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.AbstractHttpEntity;
 import org.apache.http.entity.ContentType;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.entity.mime.MultipartEntityBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 
 import js.json.JSMap;
 import js.webtools.WebRequest.Verb;
 
-public class HttpClientWebRequestManager extends WebRequestManager {
+/**
+ * A WebRequestManager that uses Apache's HttpClient.
+ * 
+ * A single client (and its pool of connections) is shared by all requests made
+ * through the manager, so connections to a host can be kept alive and reused.
+ * The pool parameters can be adjusted until the first request is made. Call
+ * close() to release the pooled connections when the manager is no longer
+ * needed.
+ * 
+ * This class is threadsafe; a single instance can serve many threads.
+ * 
+ * The client advertises gzip and deflate encodings, and transparently decodes
+ * responses that use them. Optionally, POST and PUT bodies above a size
+ * threshold can be sent gzipped (if the server is known to accept them).
+ */
+public class HttpClientWebRequestManager extends WebRequestManager implements Closeable {
 
   public HttpClientWebRequestManager() {
   }
 
+  // ------------------------------------------------------------------
+  // Connection pool configuration
+  // ------------------------------------------------------------------
+
+  /**
+   * Set the maximum number of connections in the pool, over all routes
+   */
+  public synchronized HttpClientWebRequestManager withMaxConnections(int maxConnections) {
+    assertClientNotBuilt();
+    checkArgument(maxConnections > 0);
+    mMaxConnections = maxConnections;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of connections in the pool for any single route
+   * (i.e., host and port)
+   */
+  public synchronized HttpClientWebRequestManager withMaxConnectionsPerRoute(int maxConnections) {
+    assertClientNotBuilt();
+    checkArgument(maxConnections > 0);
+    mMaxConnectionsPerRoute = maxConnections;
+    return this;
+  }
+
+  /**
+   * Set the time after which idle connections are evicted from the pool
+   */
+  public synchronized HttpClientWebRequestManager withMaxIdleTime(int idleTimeMs) {
+    assertClientNotBuilt();
+    checkArgument(idleTimeMs > 0);
+    mMaxIdleTimeMs = idleTimeMs;
+    return this;
+  }
+
+  /**
+   * Send POST and PUT bodies with gzip encoding if their length (if known) is
+   * at least some number of bytes. The server must support gzip-encoded
+   * request bodies
+   */
+  public HttpClientWebRequestManager withRequestCompression(int minimumLength) {
+    checkArgument(minimumLength >= 0);
+    mRequestCompressionThreshold = minimumLength;
+    return this;
+  }
+
+  /**
+   * Release the client and any pooled connections
+   */
+  @Override
+  public synchronized void close() {
+    if (mHttpClient == null)
+      return;
+    try {
+      mHttpClient.close();
+    } catch (IOException e) {
+      pr(e);
+    }
+    mHttpClient = null;
+    mConnectionManager = null;
+  }
+
+  private void assertClientNotBuilt() {
+    checkState(mHttpClient == null, "client already constructed");
+  }
+
+  private synchronized CloseableHttpClient httpClient() {
+    if (mHttpClient == null) {
+      PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager() {
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+          return new TimedConnectionRequest(super.requestConnection(route, state), route);
+        }
+      };
+      cm.setMaxTotal(mMaxConnections);
+      cm.setDefaultMaxPerRoute(mMaxConnectionsPerRoute);
+      // Check that a connection hasn't been closed by the server if it has been idle for a while
+      cm.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+      // Content compression (Accept-Encoding: gzip,deflate, and decoding of the
+      // responses) is enabled by the builder by default
+      mConnectionManager = cm;
+      mHttpClient = HttpClients.custom() //
+          .setConnectionManager(cm) //
+          .evictExpiredConnections() //
+          .evictIdleConnections(mMaxIdleTimeMs, TimeUnit.MILLISECONDS) //
+          .build();
+    }
+    return mHttpClient;
+  }
+
+  // ------------------------------------------------------------------
+  // Metrics
+  // ------------------------------------------------------------------
+
+  /**
+   * Include the connection pool statistics with the request metrics
+   */
+  @Override
+  public JSMap metricsSnapshot() {
+    JSMap m = super.metricsSnapshot();
+    PoolingHttpClientConnectionManager cm;
+    synchronized (this) {
+      cm = mConnectionManager;
+    }
+    if (cm != null) {
+      PoolStats stats = cm.getTotalStats();
+      m.put("pool", map() //
+          .put("leased", stats.getLeased()) //
+          .put("pending", stats.getPending()) //
+          .put("available", stats.getAvailable()) //
+          .put("max", stats.getMax()));
+    }
+    return m;
+  }
+
+  /**
+   * Wraps a request to lease a connection from the pool, to record how long
+   * the lease takes
+   */
+  private final class TimedConnectionRequest implements ConnectionRequest {
+
+    TimedConnectionRequest(ConnectionRequest request, HttpRoute route) {
+      mRequest = request;
+      mRoute = route;
+    }
+
+    @Override
+    public HttpClientConnection get(long timeout, TimeUnit timeUnit)
+        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+      long startTime = System.currentTimeMillis();
+      try {
+        return mRequest.get(timeout, timeUnit);
+      } finally {
+        HttpHost target = mRoute.getTargetHost();
+        String hostKey = WebRequest.hostKey(target.getSchemeName(), target.getHostName(), target.getPort());
+        metrics().recordLeaseWait(hostKey, System.currentTimeMillis() - startTime);
+      }
+    }
+
+    @Override
+    public boolean cancel() {
+      return mRequest.cancel();
+    }
+
+    private final ConnectionRequest mRequest;
+    private final HttpRoute mRoute;
+  }
+
+  // ------------------------------------------------------------------
+
   @Override
   public String makeRequest(WebRequest request) {
-    CloseableHttpClient httpClient;
-    httpClient = HttpClients.createDefault();
+    // The entity can be null, e.g. for a 304 (not modified) response
+    return execute(request, entity -> entity == null ? "" : EntityUtils.toString(entity));
+  }
+
+  @Override
+  public void makeRequest(WebRequest request, ResponseBodyHandler handler) {
+    execute(request, entity -> {
+      // The entity can be null, e.g. if the response has no content
+      if (entity == null) {
+        handler.handle(InputStream.nullInputStream());
+        return null;
+      }
+      try (InputStream body = entity.getContent()) {
+        handler.handle(body);
+      }
+      return null;
+    });
+  }
+
+  /**
+   * Reads a response's entity
+   */
+  private interface EntityReader<T> {
+    T read(HttpEntity entity) throws IOException;
+  }
+
+  /**
+   * Execute a request, and process its response's entity
+   */
+  private <T> T execute(WebRequest request, EntityReader<T> reader) {
+    CloseableHttpClient httpClient = httpClient();
+    HttpRequestBase httpRequest = buildHttpRequest(request);
+    CloseableHttpResponse httpResponse = null;
+    long startTime = System.currentTimeMillis();
+    // If the request has a deadline, abort it at that time; otherwise a response
+    // that trickles in slowly could keep it running indefinitely
+    ScheduledFuture<?> abortTask = null;
+    if (request.hasDeadline())
+      abortTask = Deadline.schedule(httpRequest::abort, request.remainingTime());
+    try {
+      httpResponse = httpClient.execute(httpRequest);
+      HttpEntity entity = httpResponse.getEntity();
+      int statusCode = httpResponse.getStatusLine().getStatusCode();
+      RetryPolicy retryPolicy = request.getRetryPolicy();
+      if (retryPolicy != null && retryPolicy.retriesStatusCode(statusCode)) {
+        EntityUtils.consume(entity);
+        storeResponseInfo(request, httpResponse, startTime);
+        throw new HttpStatusException(statusCode, parseRetryAfter(httpResponse.getFirstHeader("Retry-After")));
+      }
+      T result = reader.read(entity);
+      storeResponseInfo(request, httpResponse, startTime);
+      return result;
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    } finally {
+      if (abortTask != null)
+        abortTask.cancel(false);
+      if (httpResponse != null) {
+        try {
+          httpResponse.close();
+        } catch (IOException e) {
+          pr(e);
+        }
+      }
+    }
+  }
+
+  private static void storeResponseInfo(WebRequest request, CloseableHttpResponse httpResponse, long startTime) {
+    List<String> headers = arrayList();
+    for (Header h : httpResponse.getAllHeaders()) {
+      headers.add(h.getName());
+      headers.add(h.getValue());
+    }
+    HttpEntity entity = httpResponse.getEntity();
+    long contentLength = (entity == null) ? 0 : entity.getContentLength();
+    request.setResponseInfo(new WebResponseInfo(httpResponse.getStatusLine().getStatusCode(), headers,
+        contentLength, System.currentTimeMillis() - startTime));
+  }
+
+  /**
+   * Construct an HttpClient request from a WebRequest
+   */
+  private HttpRequestBase buildHttpRequest(WebRequest request) {
     URI uri = request.uri();
     HttpRequestBase httpRequest;
 
@@ -86,7 +354,10 @@ public class HttpClientWebRequestManager extends WebRequestManager {
       // refreshing GMail tokens doesn't accept such requests.
       // This also seems to have been the problem of issue #1151.
       File uploadFile = request.getUploadFile();
-      if (uploadFile != null) {
+      File postFile = request.getPostFile();
+      if (postFile != null) {
+        entity = new FileChannelEntity(postFile, fileContentType(postFile));
+      } else if (uploadFile != null) {
         MultipartEntityBuilder builder = MultipartEntityBuilder.create();
         builder.addBinaryBody(uploadFile.getName(), uploadFile);
         JSMap params = request.readArgs();
@@ -98,12 +369,14 @@ public class HttpClientWebRequestManager extends WebRequestManager {
         JSMap json = request.readArgs().getMap(WebRequest.KEY_CONTENT_TYPE_JSON);
         entity = new StringEntity(json.toString(), ContentType.APPLICATION_JSON);
       } else {
-        try {
-          entity = new UrlEncodedFormEntity(request.readParameters());
-        } catch (UnsupportedEncodingException e) {
-          throw asIllegalArgumentException(e);
-        }
+        entity = new StringEntity(WebTools.encodeForm(request.readArgs()),
+            ContentType.create("application/x-www-form-urlencoded", StandardCharsets.UTF_8));
       }
+      if (request.getUploadProgressListener() != null || request.isChunkedUpload())
+        entity = new UploadEntity(entity, request.getUploadProgressListener(), request.isChunkedUpload());
+      if (mRequestCompressionThreshold >= 0 && entity.getContentLength() >= mRequestCompressionThreshold)
+        entity = new GzipCompressingEntity(entity);
+      metrics().recordBytesOut(request.hostKey(), request.getVerb(), entity.getContentLength());
       httpEntityRequest.setEntity(entity);
       httpRequest = httpEntityRequest;
     }
@@ -115,43 +388,173 @@ public class HttpClientWebRequestManager extends WebRequestManager {
       throw notSupported("verb not supported:", request.getVerb());
     }
 
-    int timeout = request.getTimeout();
-    if (mRequestConfig == null || timeout != mPreviousTimeout) {
-      mPreviousTimeout = timeout;
-      int ms = (int) timeout;
-      mRequestConfig = RequestConfig.custom().setSocketTimeout(ms).setConnectTimeout(ms)
-          .setConnectionRequestTimeout(ms).build();
-    }
-    httpRequest.setConfig(mRequestConfig);
+    httpRequest.setConfig(requestConfig(request));
+    if (request.hasDeadline())
+      httpRequest.addHeader(Deadline.HEADER_TIME_REMAINING, Long.toString(request.remainingTime()));
 
+    // Add the authorization header to the HttpClient request, not the WebRequest; the latter
+    // is frozen once sent, and may be executed more than once
     if (request.getUserName() != null) {
       String userInfoString = request.getUserName() + ":" + request.getPassword();
       byte[] sBytes = userInfoString.getBytes(StandardCharsets.UTF_8);
       String encoding = Base64.encodeBase64String(sBytes);
       String authorizationString = "Basic " + encoding;
-      request.addHeader("Authorization", authorizationString);
+      httpRequest.addHeader("Authorization", authorizationString);
     }
 
     List<String> headers = request.getHeaders();
     for (int i = 0; i < headers.size(); i += 2) {
       httpRequest.addHeader(headers.get(i), headers.get(i + 1));
     }
+    return httpRequest;
+  }
 
-    CloseableHttpResponse httpResponse = null;
-    try {
-      httpResponse = httpClient.execute(httpRequest);
-      HttpEntity entity = httpResponse.getEntity();
-      return EntityUtils.toString(entity);
-    } catch (IOException e) {
-      throw asRuntimeException(e);
-    } finally {
-      if (httpResponse != null) {
-        try {
-          httpResponse.close();
-        } catch (IOException e) {
-          pr(e);
-        }
+  // ------------------------------------------------------------------
+  // Request entities
+  // ------------------------------------------------------------------
+
+  static String fileContentType(File file) {
+    String contentType = WebTools.determineContentType(file.getName());
+    if (contentType.isEmpty())
+      contentType = "application/octet-stream";
+    return contentType;
+  }
+
+  /**
+   * An entity that sends a file's contents by transferring them from a
+   * FileChannel, rather than reading them into memory
+   */
+  private static final class FileChannelEntity extends AbstractHttpEntity {
+
+    FileChannelEntity(File file, String contentType) {
+      mFile = file;
+      setContentType(contentType);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    @Override
+    public long getContentLength() {
+      return mFile.length();
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      return new FileInputStream(mFile);
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+      try (FileChannel channel = FileChannel.open(mFile.toPath(), StandardOpenOption.READ)) {
+        WebResponse.transfer(channel, 0, channel.size(), outStream);
+      }
+      outStream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return false;
+    }
+
+    private final File mFile;
+  }
+
+  /**
+   * Wraps an entity to report progress as it is written, and/or to send it
+   * with chunked encoding
+   */
+  private static final class UploadEntity extends HttpEntityWrapper {
+
+    UploadEntity(HttpEntity entity, UploadProgressListener listener, boolean chunked) {
+      super(entity);
+      mListener = listener;
+      mChunked = chunked;
+    }
+
+    @Override
+    public boolean isChunked() {
+      return mChunked || super.isChunked();
+    }
+
+    @Override
+    public long getContentLength() {
+      return mChunked ? -1 : super.getContentLength();
+    }
+
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException {
+      if (mListener == null) {
+        super.writeTo(outStream);
+        return;
       }
+      long totalBytes = wrappedEntity.getContentLength();
+      super.writeTo(new FilterOutputStream(outStream) {
+        @Override
+        public void write(int b) throws IOException {
+          out.write(b);
+          report(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          out.write(b, off, len);
+          report(len);
+        }
+
+        private void report(int count) {
+          mBytesSent += count;
+          mListener.progress(mBytesSent, totalBytes);
+        }
+
+        private long mBytesSent;
+      });
+    }
+
+    private final UploadProgressListener mListener;
+    private final boolean mChunked;
+  }
+
+  /**
+   * Get the (immutable) RequestConfig for a request's timeouts
+   */
+  private RequestConfig requestConfig(WebRequest request) {
+    int connectMs = request.getConnectTimeout();
+    int readMs = request.getReadTimeout();
+    int poolMs = request.getPoolTimeout();
+    // Timeouts that are clamped to a deadline vary from request to request, so don't cache them
+    if (request.hasDeadline())
+      return buildRequestConfig(connectMs, readMs, poolMs);
+    String key = connectMs + "/" + readMs + "/" + poolMs;
+    return mRequestConfigs.computeIfAbsent(key, k -> buildRequestConfig(connectMs, readMs, poolMs));
+  }
+
+  private static RequestConfig buildRequestConfig(int connectMs, int readMs, int poolMs) {
+    return RequestConfig.custom() //
+        .setSocketTimeout(readMs) //
+        .setConnectTimeout(connectMs) //
+        .setConnectionRequestTimeout(poolMs) //
+        .build();
+  }
+
+  /**
+   * Parse the value of a Retry-After header, which is either a number of
+   * seconds or an http date; return the delay in milliseconds (zero if missing
+   * or unparseable)
+   */
+  private static long parseRetryAfter(Header header) {
+    if (header == null)
+      return 0;
+    String value = header.getValue().trim();
+    try {
+      return Math.max(0, Long.parseLong(value) * 1000);
+    } catch (NumberFormatException e) {
+      Date date = DateUtils.parseDate(value);
+      if (date == null)
+        return 0;
+      return Math.max(0, date.getTime() - System.currentTimeMillis());
     }
   }
 
@@ -165,6 +568,16 @@ public class HttpClientWebRequestManager extends WebRequestManager {
     return false;
   }
 
-  private int mPreviousTimeout;
-  private RequestConfig mRequestConfig;
+  private static final int DEFAULT_MAX_CONNECTIONS = 200;
+  private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+  private static final int DEFAULT_MAX_IDLE_TIME_MS = 30_000;
+  private static final int VALIDATE_AFTER_INACTIVITY_MS = 2_000;
+
+  private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+  private int mMaxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+  private int mMaxIdleTimeMs = DEFAULT_MAX_IDLE_TIME_MS;
+  private volatile int mRequestCompressionThreshold = -1;
+  private CloseableHttpClient mHttpClient;
+  private PoolingHttpClientConnectionManager mConnectionManager;
+  private final Map<String, RequestConfig> mRequestConfigs = concurrentHashMap();
 }
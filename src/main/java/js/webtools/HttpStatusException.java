@@ -0,0 +1,67 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+/**
+ * Thrown by a WebRequestExecutor when an http response has a status code that
+ * should be treated as a failure (e.g., one that can be retried); or while
+ * servicing a WebResponse, when the request should be rejected with a
+ * particular status code
+ */
+public final class HttpStatusException extends RuntimeException {
+
+  public HttpStatusException(int statusCode, long retryAfterMs) {
+    super("http status code: " + statusCode);
+    mStatusCode = statusCode;
+    mRetryAfterMs = retryAfterMs;
+  }
+
+  public HttpStatusException(int statusCode, String message) {
+    this(statusCode, message, 0);
+  }
+
+  public HttpStatusException(int statusCode, String message, long retryAfterMs) {
+    super(message);
+    mStatusCode = statusCode;
+    mRetryAfterMs = retryAfterMs;
+  }
+
+  public int statusCode() {
+    return mStatusCode;
+  }
+
+  /**
+   * Get the delay requested by the server (via a Retry-After header) before
+   * the request is attempted again, or zero if none
+   */
+  public long retryAfterMs() {
+    return mRetryAfterMs;
+  }
+
+  private static final long serialVersionUID = 1L;
+
+  private final int mStatusCode;
+  private final long mRetryAfterMs;
+}
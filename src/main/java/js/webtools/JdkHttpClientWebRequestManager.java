@@ -0,0 +1,453 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import js.json.JSMap;
+
+/**
+ * A WebRequestManager that uses the JDK's java.net.http.HttpClient.
+ * 
+ * The client prefers HTTP/2, so many concurrent requests to the same host can
+ * be multiplexed over a single connection (falling back to HTTP/1.1 if the
+ * server doesn't support it). Asynchronous requests are non-blocking.
+ * 
+ * This class is threadsafe; a single instance can serve many threads.
+ */
+public class JdkHttpClientWebRequestManager extends WebRequestManager {
+
+  public JdkHttpClientWebRequestManager() {
+  }
+
+  /**
+   * Set the timeout for establishing connections
+   */
+  public synchronized JdkHttpClientWebRequestManager withConnectTimeout(int timeoutMs) {
+    checkState(mHttpClient == null, "client already constructed");
+    checkArgument(timeoutMs > 0);
+    mConnectTimeoutMs = timeoutMs;
+    return this;
+  }
+
+  private synchronized HttpClient httpClient() {
+    if (mHttpClient == null) {
+      mHttpClient = HttpClient.newBuilder() //
+          .version(HttpClient.Version.HTTP_2) //
+          .followRedirects(HttpClient.Redirect.NORMAL) //
+          .connectTimeout(Duration.ofMillis(mConnectTimeoutMs)) //
+          .build();
+    }
+    return mHttpClient;
+  }
+
+  // ------------------------------------------------------------------
+  // WebRequestExecutor interface
+  // ------------------------------------------------------------------
+
+  @Override
+  public String makeRequest(WebRequest request) {
+    // The request timeout only bounds the wait for the response headers, so if there's a
+    // deadline, send the request asynchronously and bound the entire exchange
+    if (request.hasDeadline()) {
+      try {
+        return makeRequestAsync(request, null).get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw asRuntimeException(e);
+      } catch (ExecutionException e) {
+        throw asRuntimeException(e.getCause());
+      }
+    }
+    long startTime = System.currentTimeMillis();
+    HttpResponse<byte[]> response;
+    try {
+      response = httpClient().send(buildHttpRequest(request), BodyHandlers.ofByteArray());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw asRuntimeException(e);
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+    return processResponse(request, response, startTime);
+  }
+
+  @Override
+  public CompletableFuture<String> makeRequestAsync(WebRequest request, Executor blockingExecutor) {
+    long startTime = System.currentTimeMillis();
+    CompletableFuture<String> result = httpClient()
+        .sendAsync(buildHttpRequest(request), BodyHandlers.ofByteArray())
+        .thenApply(response -> processResponse(request, response, startTime));
+    if (request.hasDeadline())
+      result = result.orTimeout(request.remainingTime(), TimeUnit.MILLISECONDS);
+    return result;
+  }
+
+  @Override
+  public void makeRequest(WebRequest request, ResponseBodyHandler handler) {
+    long startTime = System.currentTimeMillis();
+    HttpResponse<InputStream> response;
+    try {
+      response = httpClient().send(buildHttpRequest(request), BodyHandlers.ofInputStream());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw asRuntimeException(e);
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+    // The request timeout doesn't apply to reading the body, so if there's a deadline,
+    // stop the body from being read once it passes
+    DeadlineGuard guard = request.hasDeadline() ? new DeadlineGuard(response.body(), request.remainingTime())
+        : null;
+    try (InputStream body = decodedStream(response.headers(), response.body())) {
+      storeResponseInfo(request, response, startTime);
+      checkRetryableStatus(request, response);
+      handler.handle(body);
+    } catch (IOException e) {
+      if (guard != null && guard.expired())
+        throw badState("deadline exceeded while reading response for:", request.uri());
+      throw asRuntimeException(e);
+    } finally {
+      if (guard != null)
+        guard.finish();
+    }
+  }
+
+  /**
+   * Closes a response body stream (and interrupts the thread reading it, which
+   * may be blocked waiting for data) when a deadline passes
+   */
+  private static final class DeadlineGuard {
+
+    DeadlineGuard(InputStream body, long remainingMs) {
+      mBody = body;
+      mThread = Thread.currentThread();
+      mTask = Deadline.schedule(this::expire, remainingMs);
+    }
+
+    private synchronized void expire() {
+      if (mFinished)
+        return;
+      mExpired = true;
+      try {
+        mBody.close();
+      } catch (IOException e) {
+        // Ignore; we're abandoning the stream
+      }
+      mThread.interrupt();
+    }
+
+    synchronized boolean expired() {
+      return mExpired;
+    }
+
+    /**
+     * Called by the reading thread once it's done with the stream
+     */
+    synchronized void finish() {
+      mFinished = true;
+      mTask.cancel(false);
+      // Clear the interrupt we caused, if any
+      if (mExpired)
+        Thread.interrupted();
+    }
+
+    private final InputStream mBody;
+    private final Thread mThread;
+    private final ScheduledFuture<?> mTask;
+    private boolean mFinished;
+    private boolean mExpired;
+  }
+
+  @Override
+  public boolean canRetryAfter(Throwable throwable) {
+    while (throwable != null) {
+      if (throwable instanceof java.net.SocketException || throwable instanceof HttpConnectTimeoutException)
+        return true;
+      throwable = throwable.getCause();
+    }
+    return false;
+  }
+
+  // ------------------------------------------------------------------
+  // Building requests
+  // ------------------------------------------------------------------
+
+  private HttpRequest buildHttpRequest(WebRequest request) {
+    HttpRequest.Builder b = HttpRequest.newBuilder(request.uri());
+    // The client's connect timeout applies to all requests; there is no per-request equivalent
+    b.timeout(Duration.ofMillis(request.getReadTimeout()));
+    if (request.hasDeadline())
+      b.header(Deadline.HEADER_TIME_REMAINING, Long.toString(request.remainingTime()));
+    b.header("Accept-Encoding", "gzip");
+
+    switch (request.getVerb()) {
+    case GET:
+      if (request.isJsonRequestType())
+        b.header("Content-Type", "application/json");
+      b.GET();
+      break;
+    case POST:
+    case PUT: {
+      BodyPublisher body;
+      File uploadFile = request.getUploadFile();
+      File postFile = request.getPostFile();
+      if (postFile != null) {
+        b.header("Content-Type", HttpClientWebRequestManager.fileContentType(postFile));
+        try {
+          body = BodyPublishers.ofFile(postFile.toPath());
+        } catch (FileNotFoundException e) {
+          throw asRuntimeException(e);
+        }
+      } else if (uploadFile != null) {
+        String boundary = UUID.randomUUID().toString();
+        b.header("Content-Type", "multipart/form-data; boundary=" + boundary);
+        body = multipartBody(boundary, uploadFile, request.readArgs());
+      } else if (request.readArgs().containsKey(WebRequest.KEY_CONTENT_TYPE_JSON)) {
+        JSMap json = request.readArgs().getMap(WebRequest.KEY_CONTENT_TYPE_JSON);
+        b.header("Content-Type", "application/json; charset=UTF-8");
+        body = BodyPublishers.ofString(json.toString(), StandardCharsets.UTF_8);
+      } else {
+        b.header("Content-Type", "application/x-www-form-urlencoded; charset=UTF-8");
+        body = BodyPublishers.ofString(WebTools.encodeForm(request.readArgs()), StandardCharsets.UTF_8);
+      }
+      if (request.getUploadProgressListener() != null)
+        body = withProgress(body, request.getUploadProgressListener());
+      metrics().recordBytesOut(request.hostKey(), request.getVerb(), body.contentLength());
+      if (request.isChunkedUpload())
+        body = BodyPublishers.fromPublisher(body);
+      b.method(request.getVerb().name(), body);
+    }
+      break;
+    case DELETE:
+      b.DELETE();
+      break;
+    default:
+      throw notSupported("verb not supported:", request.getVerb());
+    }
+
+    if (request.getUserName() != null) {
+      String userInfoString = request.getUserName() + ":" + request.getPassword();
+      String encoding = Base64.getEncoder().encodeToString(userInfoString.getBytes(StandardCharsets.UTF_8));
+      b.header("Authorization", "Basic " + encoding);
+    }
+
+    List<String> headers = request.getHeaders();
+    for (int i = 0; i < headers.size(); i += 2)
+      b.header(headers.get(i), headers.get(i + 1));
+    return b.build();
+  }
+
+  /**
+   * Construct a multipart/form-data body containing a file and some text
+   * fields. The file's contents are streamed from disk rather than read into
+   * memory
+   */
+  private static BodyPublisher multipartBody(String boundary, File file, JSMap params) {
+    StringBuilder head = new StringBuilder();
+    head.append("--").append(boundary).append("\r\n");
+    head.append("Content-Disposition: form-data; name=\"").append(file.getName()).append("\"; filename=\"")
+        .append(file.getName()).append("\"\r\n");
+    head.append("Content-Type: application/octet-stream\r\n\r\n");
+
+    StringBuilder tail = new StringBuilder("\r\n");
+    for (String key : params.keySet()) {
+      tail.append("--").append(boundary).append("\r\n");
+      tail.append("Content-Disposition: form-data; name=\"").append(key).append("\"\r\n");
+      tail.append("Content-Type: text/plain; charset=UTF-8\r\n\r\n");
+      tail.append(params.getUnsafe(key).toString()).append("\r\n");
+    }
+    tail.append("--").append(boundary).append("--\r\n");
+
+    byte[] headBytes = head.toString().getBytes(StandardCharsets.UTF_8);
+    byte[] tailBytes = tail.toString().getBytes(StandardCharsets.UTF_8);
+    long length = headBytes.length + file.length() + tailBytes.length;
+
+    BodyPublisher stream = BodyPublishers.ofInputStream(() -> {
+      try {
+        return new SequenceInputStream(new ByteArrayInputStream(headBytes), new SequenceInputStream(
+            new FileInputStream(file), new ByteArrayInputStream(tailBytes)));
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+    return BodyPublishers.fromPublisher(stream, length);
+  }
+
+  /**
+   * Wrap a BodyPublisher to report progress to a listener as its buffers are
+   * consumed
+   */
+  private static BodyPublisher withProgress(BodyPublisher publisher, UploadProgressListener listener) {
+    return new BodyPublisher() {
+      @Override
+      public long contentLength() {
+        return publisher.contentLength();
+      }
+
+      @Override
+      public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+        publisher.subscribe(new Flow.Subscriber<ByteBuffer>() {
+          @Override
+          public void onSubscribe(Flow.Subscription subscription) {
+            subscriber.onSubscribe(subscription);
+          }
+
+          @Override
+          public void onNext(ByteBuffer item) {
+            mBytesSent += item.remaining();
+            listener.progress(mBytesSent, publisher.contentLength());
+            subscriber.onNext(item);
+          }
+
+          @Override
+          public void onError(Throwable throwable) {
+            subscriber.onError(throwable);
+          }
+
+          @Override
+          public void onComplete() {
+            subscriber.onComplete();
+          }
+
+          private long mBytesSent;
+        });
+      }
+    };
+  }
+
+  // ------------------------------------------------------------------
+  // Processing responses
+  // ------------------------------------------------------------------
+
+  private String processResponse(WebRequest request, HttpResponse<byte[]> response, long startTime) {
+    storeResponseInfo(request, response, startTime);
+    checkRetryableStatus(request, response);
+    try (InputStream body = decodedStream(response.headers(), new ByteArrayInputStream(response.body()))) {
+      return new String(body.readAllBytes(), charset(response.headers()));
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  /**
+   * If the response has a status code that the request's retry policy would
+   * retry, throw an HttpStatusException
+   */
+  private static void checkRetryableStatus(WebRequest request, HttpResponse<?> response) {
+    RetryPolicy retryPolicy = request.getRetryPolicy();
+    if (retryPolicy != null && retryPolicy.retriesStatusCode(response.statusCode())) {
+      long retryAfterMs = 0;
+      String value = response.headers().firstValue("Retry-After").orElse(null);
+      if (value != null) {
+        try {
+          retryAfterMs = Math.max(0, Long.parseLong(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+          // Http dates aren't supported here; use the policy's own delay
+        }
+      }
+      throw new HttpStatusException(response.statusCode(), retryAfterMs);
+    }
+  }
+
+  private static void storeResponseInfo(WebRequest request, HttpResponse<?> response, long startTime) {
+    List<String> headers = arrayList();
+    for (Map.Entry<String, List<String>> ent : response.headers().map().entrySet()) {
+      for (String value : ent.getValue()) {
+        headers.add(ent.getKey());
+        headers.add(value);
+      }
+    }
+    long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    request.setResponseInfo(new WebResponseInfo(response.statusCode(), headers, contentLength,
+        System.currentTimeMillis() - startTime));
+  }
+
+  /**
+   * Wrap a response body's stream with a decoder, if it has gzip encoding
+   */
+  private static InputStream decodedStream(HttpHeaders headers, InputStream body) throws IOException {
+    String encoding = headers.firstValue("Content-Encoding").orElse("");
+    if (encoding.equalsIgnoreCase("gzip"))
+      return new GZIPInputStream(body);
+    return body;
+  }
+
+  /**
+   * Determine the charset of a response from its Content-Type header, or UTF-8
+   * if none is given
+   */
+  private static Charset charset(HttpHeaders headers) {
+    String contentType = headers.firstValue("Content-Type").orElse("");
+    for (String param : split(contentType, ';')) {
+      param = param.trim();
+      if (param.toLowerCase().startsWith("charset=")) {
+        try {
+          return Charset.forName(param.substring("charset=".length()).replace("\"", ""));
+        } catch (IllegalArgumentException e) {
+          break;
+        }
+      }
+    }
+    return StandardCharsets.UTF_8;
+  }
+
+  private static final int DEFAULT_CONNECT_TIMEOUT_MS = 15_000;
+
+  private int mConnectTimeoutMs = DEFAULT_CONNECT_TIMEOUT_MS;
+  private HttpClient mHttpClient;
+}
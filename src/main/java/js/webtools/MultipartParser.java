@@ -0,0 +1,350 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import js.json.JSMap;
+
+/**
+ * Parses a multipart/form-data request body as it is read. Text fields are
+ * stored as strings; file parts are streamed to temporary files, and described
+ * by maps
+ */
+final class MultipartParser {
+
+  MultipartParser(InputStream input, String boundary) {
+    checkArgument(!nullOrEmpty(boundary) && boundary.length() <= 70, "bad multipart boundary:", boundary);
+    mInput = input;
+    mDelimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  MultipartParser withUploadDirectory(File directory) {
+    mUploadDirectory = directory;
+    return this;
+  }
+
+  /**
+   * Set the maximum size of each uploaded file
+   */
+  MultipartParser withMaxFileSize(long maxBytes) {
+    mMaxFileSize = maxBytes;
+    return this;
+  }
+
+  /**
+   * Set the maximum total size of all the uploaded files
+   */
+  MultipartParser withMaxTotalFileSize(long maxBytes) {
+    mMaxTotalFileSize = maxBytes;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of parts (fields and files)
+   */
+  MultipartParser withMaxParts(int maxParts) {
+    mMaxParts = maxParts;
+    return this;
+  }
+
+  /**
+   * Set the maximum total size of the text fields (including part headers)
+   */
+  MultipartParser withMaxFieldBytes(long maxBytes) {
+    mMaxFieldBytes = maxBytes;
+    return this;
+  }
+
+  /**
+   * Parse the body, storing its fields in a map. Any files created are added
+   * to a list (even if parsing fails), so the caller can delete them
+   */
+  void parse(JSMap args, List<File> createdFiles) throws IOException {
+    // The opening delimiter isn't preceded by CRLF, unless there's a preamble
+    mBuffer[0] = '\r';
+    mBuffer[1] = '\n';
+    mLimit = 2;
+    if (!copyUntilDelimiter(OutputStream.nullOutputStream()))
+      throw malformed("no opening boundary");
+
+    while (true) {
+      // The remainder of a delimiter line is "--" for the closing delimiter,
+      // or (possibly) whitespace
+      String delimiterLine = readLine(true);
+      if (delimiterLine.startsWith("--"))
+        break;
+      if (++mPartCount > mMaxParts)
+        throw new HttpStatusException(WebTools.SC_PAYLOAD_TOO_LARGE,
+            "multipart body exceeds limit of " + mMaxParts + " parts");
+
+      Map<String, String> headers = hashMap();
+      while (true) {
+        String line = readLine(false);
+        if (line.isEmpty())
+          break;
+        int colon = line.indexOf(':');
+        if (colon > 0)
+          headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+      }
+
+      Map<String, String> disposition = parseHeaderParameters(nullToEmpty(headers.get("content-disposition")));
+      String name = disposition.get("name");
+      if (name == null)
+        throw malformed("part has no name");
+      String filename = disposition.get("filename");
+
+      if (filename == null) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!copyUntilDelimiter(new LimitedOutputStream(out, "fields", mMaxFieldBytes - mFieldBytes)))
+          throw malformed("missing boundary");
+        mFieldBytes += out.size();
+        WebTools.putOrAppend(args, name, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        continue;
+      }
+
+      File file = File.createTempFile("upload_", fileSuffix(filename), mUploadDirectory);
+      createdFiles.add(file);
+      long size;
+      try (OutputStream fileOut = new FileOutputStream(file)) {
+        // The file is limited by the maximum size of a single file, and by the space
+        // remaining for all files
+        long remaining = mMaxTotalFileSize - mTotalFileSize;
+        LimitedOutputStream out;
+        if (remaining < mMaxFileSize)
+          out = new LimitedOutputStream(fileOut, "files", remaining);
+        else
+          out = new LimitedOutputStream(fileOut, "file", mMaxFileSize);
+        if (!copyUntilDelimiter(out))
+          throw malformed("missing boundary");
+        size = out.count();
+        mTotalFileSize += size;
+      }
+      JSMap fileInfo = map() //
+          .put(WebResponse.UPLOAD_FILENAME, filename) //
+          .put(WebResponse.UPLOAD_FILE, file.getPath()) //
+          .put(WebResponse.UPLOAD_SIZE, size);
+      String contentType = headers.get("content-type");
+      if (contentType != null)
+        fileInfo.put(WebResponse.UPLOAD_CONTENT_TYPE, contentType);
+      WebTools.putOrAppend(args, name, fileInfo);
+    }
+  }
+
+  private static String fileSuffix(String filename) {
+    int dot = filename.lastIndexOf('.');
+    if (dot < 0 || filename.length() - dot > 10 || filename.indexOf('/', dot) >= 0
+        || filename.indexOf('\\', dot) >= 0)
+      return null;
+    return filename.substring(dot);
+  }
+
+  /**
+   * Parse the parameters of a header value, e.g. 'form-data; name="a";
+   * filename="b.txt"'. Keys are converted to lower case
+   */
+  static Map<String, String> parseHeaderParameters(String value) {
+    Map<String, String> params = hashMap();
+    int length = value.length();
+    int cursor = value.indexOf(';');
+    while (cursor >= 0 && cursor < length) {
+      cursor++;
+      int equals = value.indexOf('=', cursor);
+      if (equals < 0)
+        break;
+      String key = value.substring(cursor, equals).trim().toLowerCase();
+      cursor = equals + 1;
+      StringBuilder sb = new StringBuilder();
+      if (cursor < length && value.charAt(cursor) == '"') {
+        cursor++;
+        while (cursor < length && value.charAt(cursor) != '"') {
+          char c = value.charAt(cursor++);
+          if (c == '\\' && cursor < length)
+            c = value.charAt(cursor++);
+          sb.append(c);
+        }
+        cursor = value.indexOf(';', cursor);
+      } else {
+        int end = value.indexOf(';', cursor);
+        sb.append(value, cursor, end < 0 ? length : end);
+        cursor = end;
+      }
+      params.put(key, sb.toString().trim());
+    }
+    return params;
+  }
+
+  private static IllegalArgumentException malformed(String detail) {
+    return badArg("malformed multipart body:", detail);
+  }
+
+  // ------------------------------------------------------------------
+  // Buffered scanning
+  // ------------------------------------------------------------------
+
+  /**
+   * Copy bytes to an OutputStream until the delimiter is found, and consume the
+   * delimiter. Returns false if the end of the input was reached first
+   */
+  private boolean copyUntilDelimiter(OutputStream out) throws IOException {
+    byte[] delimiter = mDelimiter;
+    while (true) {
+      int index = indexOfDelimiter();
+      if (index >= 0) {
+        out.write(mBuffer, mPos, index - mPos);
+        mPos = index + delimiter.length;
+        return true;
+      }
+      // Write all but the bytes that might be the start of a delimiter
+      int safeEnd = Math.max(mPos, mLimit - (delimiter.length - 1));
+      out.write(mBuffer, mPos, safeEnd - mPos);
+      mPos = safeEnd;
+      if (!fill())
+        return false;
+    }
+  }
+
+  private int indexOfDelimiter() {
+    byte[] delimiter = mDelimiter;
+    byte first = delimiter[0];
+    int last = mLimit - delimiter.length;
+    outer: for (int i = mPos; i <= last; i++) {
+      if (mBuffer[i] != first)
+        continue;
+      for (int j = 1; j < delimiter.length; j++)
+        if (mBuffer[i + j] != delimiter[j])
+          continue outer;
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Read a line terminated by CRLF (which is not included)
+   * 
+   * @param delimiterLine
+   *          true if reading the remainder of a delimiter line; if it is the
+   *          closing delimiter, the CRLF (and epilogue) are optional, so the
+   *          body may end instead
+   */
+  private String readLine(boolean delimiterLine) throws IOException {
+    ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int previous = -1;
+    while (true) {
+      if (mPos == mLimit && !fill()) {
+        String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        if (delimiterLine && text.startsWith("--"))
+          return text;
+        throw malformed("unexpected end of body");
+      }
+      int b = mBuffer[mPos++];
+      if (b == '\n' && previous == '\r')
+        return new String(line.toByteArray(), 0, line.size() - 1, StandardCharsets.UTF_8);
+      if (++mFieldBytes > mMaxFieldBytes || line.size() >= MAX_LINE_LENGTH)
+        throw new HttpStatusException(WebTools.SC_PAYLOAD_TOO_LARGE, "multipart headers too large");
+      line.write(b);
+      previous = b;
+    }
+  }
+
+  /**
+   * Move any unconsumed bytes to the start of the buffer, and read more bytes
+   * after them. Returns false if no more bytes are available
+   */
+  private boolean fill() throws IOException {
+    if (mPos > 0) {
+      System.arraycopy(mBuffer, mPos, mBuffer, 0, mLimit - mPos);
+      mLimit -= mPos;
+      mPos = 0;
+    }
+    int count = mInput.read(mBuffer, mLimit, mBuffer.length - mLimit);
+    if (count <= 0)
+      return false;
+    mLimit += count;
+    return true;
+  }
+
+  /**
+   * An OutputStream that fails if more than a certain number of bytes are
+   * written to it
+   */
+  private static final class LimitedOutputStream extends OutputStream {
+
+    LimitedOutputStream(OutputStream out, String description, long maxBytes) {
+      mOut = out;
+      mDescription = description;
+      mMaxBytes = maxBytes;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      mCount += len;
+      if (mCount > mMaxBytes)
+        throw new HttpStatusException(WebTools.SC_PAYLOAD_TOO_LARGE,
+            "multipart " + mDescription + " exceeds limit of " + mMaxBytes + " bytes");
+      mOut.write(b, off, len);
+    }
+
+    long count() {
+      return mCount;
+    }
+
+    private final OutputStream mOut;
+    private final String mDescription;
+    private final long mMaxBytes;
+    private long mCount;
+  }
+
+  private static final int MAX_LINE_LENGTH = 8192;
+
+  private final InputStream mInput;
+  private final byte[] mDelimiter;
+  private final byte[] mBuffer = new byte[64 * 1024];
+  private int mPos;
+  private int mLimit;
+  private File mUploadDirectory;
+  private long mMaxFileSize = Long.MAX_VALUE;
+  private long mMaxFieldBytes = Long.MAX_VALUE;
+  private long mMaxTotalFileSize = Long.MAX_VALUE;
+  private int mMaxParts = Integer.MAX_VALUE;
+  private long mTotalFileSize;
+  private int mPartCount;
+  private long mFieldBytes;
+}
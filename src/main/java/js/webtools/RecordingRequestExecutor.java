@@ -0,0 +1,171 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import js.base.BaseObject;
+import js.json.JSMap;
+import js.webtools.WebRequest.Verb;
+
+/**
+ * A WebRequestExecutor that passes requests through to another executor, and
+ * records each request and its response to a log file. The log can be served
+ * back later by a ReplayRequestExecutor, e.g. for offline load tests.
+ * 
+ * The log has one json map per line; if the file's name ends with ".gz", it is
+ * compressed. Records are appended to any existing log. Requests that fail
+ * are recorded too (with the exception's class and message), so replaying
+ * them reproduces the failure.
+ * 
+ * This class is threadsafe
+ */
+public final class RecordingRequestExecutor extends BaseObject implements WebRequestExecutor, Closeable {
+
+  public RecordingRequestExecutor(WebRequestExecutor delegate, File logFile) {
+    mDelegate = checkNotNull(delegate);
+    try {
+      OutputStream out = new FileOutputStream(logFile, true);
+      if (logFile.getName().endsWith(".gz"))
+        out = new GZIPOutputStream(out, true);
+      mWriter = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  @Override
+  public String makeRequest(WebRequest request) {
+    long startTime = System.currentTimeMillis();
+    String body;
+    try {
+      body = mDelegate.makeRequest(request);
+    } catch (RuntimeException e) {
+      JSMap m = record(request, startTime);
+      m.put(KEY_ERROR, e.getClass().getName());
+      m.put(KEY_ERROR_MESSAGE, nullToEmpty(e.getMessage()));
+      if (e instanceof HttpStatusException) {
+        HttpStatusException se = (HttpStatusException) e;
+        m.put(KEY_STATUS, se.statusCode());
+        m.put(KEY_RETRY_AFTER, se.retryAfterMs());
+      }
+      write(m);
+      throw e;
+    }
+    JSMap m = record(request, startTime);
+    m.put(KEY_BODY, body);
+    write(m);
+    return body;
+  }
+
+  /**
+   * Construct a record for a request, with its elapsed time and response
+   * information (if any)
+   */
+  private static JSMap record(WebRequest request, long startTime) {
+    JSMap m = map();
+    m.put(KEY_REQUEST, requestKey(request));
+    m.put(KEY_ELAPSED, System.currentTimeMillis() - startTime);
+    WebResponseInfo info = request.storedResponseInfo();
+    if (info != null) {
+      m.put(KEY_STATUS, info.statusCode());
+      m.put(KEY_HEADERS, info.headersString());
+    }
+    return m;
+  }
+
+  @Override
+  public boolean canRetryAfter(Throwable throwable) {
+    return mDelegate.canRetryAfter(throwable);
+  }
+
+  @Override
+  public synchronized void close() {
+    try {
+      mWriter.close();
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  private synchronized void write(JSMap m) {
+    try {
+      mWriter.write(m.toString());
+      mWriter.write('\n');
+      mWriter.flush();
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  /**
+   * Construct a string that identifies a request, for matching recorded
+   * requests with replayed ones: its verb, uri, and (if it has a body) its
+   * parameters or file
+   */
+  static String requestKey(WebRequest request) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(request.getVerb().name());
+    sb.append(' ');
+    sb.append(request.uri());
+    Verb verb = request.getVerb();
+    if (verb == Verb.POST || verb == Verb.PUT) {
+      sb.append(' ');
+      if (request.getPostFile() != null)
+        sb.append(request.getPostFile().getName());
+      else {
+        if (request.getUploadFile() != null) {
+          sb.append(request.getUploadFile().getName());
+          sb.append(' ');
+        }
+        sb.append(request.readArgs());
+      }
+    }
+    return sb.toString();
+  }
+
+  static final String KEY_REQUEST = "req";
+  static final String KEY_BODY = "body";
+  static final String KEY_ELAPSED = "ms";
+  static final String KEY_STATUS = "status";
+  static final String KEY_HEADERS = "headers";
+  static final String KEY_ERROR = "error";
+  static final String KEY_ERROR_MESSAGE = "message";
+  static final String KEY_RETRY_AFTER = "retry_after";
+
+  private final WebRequestExecutor mDelegate;
+  private final Writer mWriter;
+}
@@ -0,0 +1,158 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import js.base.BaseObject;
+import js.base.DateTimeTools;
+import js.json.JSMap;
+
+/**
+ * A WebRequestExecutor that serves responses from a log written by a
+ * RecordingRequestExecutor, without accessing the network.
+ * 
+ * If a request was recorded more than once, the recorded responses are served
+ * in turn, repeating from the start when they are exhausted. A recorded failure
+ * is reproduced by throwing an equivalent exception. A request that was never
+ * recorded fails. By default, responses are served immediately;
+ * optionally, a delay can be injected to simulate network latency.
+ * 
+ * This class is threadsafe
+ */
+public final class ReplayRequestExecutor extends BaseObject implements WebRequestExecutor {
+
+  public ReplayRequestExecutor(File logFile) {
+    try (InputStream in = openLog(logFile);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          if (line.isEmpty())
+            continue;
+          JSMap m = new JSMap(line);
+          String key = m.get(RecordingRequestExecutor.KEY_REQUEST);
+          mRecordings.computeIfAbsent(key, k -> new Recording()).responses.add(m);
+        }
+      } catch (EOFException e) {
+        // A compressed log whose recorder wasn't closed lacks the gzip trailer; every
+        // record that was flushed has been read, so treat this as the end of the log
+        log("compressed log is incomplete:", logFile);
+      }
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+    log("read recordings for", mRecordings.size(), "requests from:", logFile);
+  }
+
+  /**
+   * Delay each response by a fixed amount
+   */
+  public ReplayRequestExecutor withLatency(long delayMs) {
+    checkArgument(delayMs >= 0);
+    mFixedLatencyMs = delayMs;
+    return this;
+  }
+
+  /**
+   * Delay each response by its recorded latency, multiplied by a scale factor
+   */
+  public ReplayRequestExecutor withRecordedLatency(double scale) {
+    checkArgument(scale >= 0);
+    mRecordedLatencyScale = scale;
+    return this;
+  }
+
+  @Override
+  public String makeRequest(WebRequest request) {
+    String key = RecordingRequestExecutor.requestKey(request);
+    Recording rec = mRecordings.get(key);
+    if (rec == null)
+      throw badArg("no recorded response for request:", key);
+    JSMap m = rec.responses.get(Math.floorMod(rec.cursor.getAndIncrement(), rec.responses.size()));
+
+    long delay = mFixedLatencyMs + (long) (m.opt(RecordingRequestExecutor.KEY_ELAPSED, 0L) * mRecordedLatencyScale);
+    if (delay > 0)
+      DateTimeTools.sleepForRealMs(delay);
+
+    if (m.containsKey(RecordingRequestExecutor.KEY_STATUS)) {
+      String body = m.opt(RecordingRequestExecutor.KEY_BODY, "");
+      request.setResponseInfo(new WebResponseInfo(m.opt(RecordingRequestExecutor.KEY_STATUS, WebTools.SC_OK),
+          WebResponseInfo.parseHeadersString(m.opt(RecordingRequestExecutor.KEY_HEADERS, "")), body.length(),
+          delay));
+    }
+    if (m.containsKey(RecordingRequestExecutor.KEY_ERROR))
+      throw recordedFailure(m);
+    return m.opt(RecordingRequestExecutor.KEY_BODY, "");
+  }
+
+  /**
+   * Construct an exception equivalent to one that was recorded
+   */
+  private static RuntimeException recordedFailure(JSMap m) {
+    String className = m.get(RecordingRequestExecutor.KEY_ERROR);
+    String message = m.opt(RecordingRequestExecutor.KEY_ERROR_MESSAGE, "");
+    if (className.equals(HttpStatusException.class.getName()))
+      return new HttpStatusException(m.opt(RecordingRequestExecutor.KEY_STATUS, 0), message,
+          m.opt(RecordingRequestExecutor.KEY_RETRY_AFTER, 0L));
+    try {
+      Class<?> c = Class.forName(className);
+      if (RuntimeException.class.isAssignableFrom(c))
+        return (RuntimeException) c.getConstructor(String.class).newInstance(message);
+    } catch (ReflectiveOperationException e) {
+      // Fall through, and report it as a generic exception
+    }
+    return new RuntimeException(className + ": " + message);
+  }
+
+  private static InputStream openLog(File logFile) throws IOException {
+    InputStream in = new FileInputStream(logFile);
+    if (logFile.getName().endsWith(".gz"))
+      in = new GZIPInputStream(in);
+    return in;
+  }
+
+  private static final class Recording {
+    final List<JSMap> responses = arrayList();
+    final AtomicInteger cursor = new AtomicInteger();
+  }
+
+  private final Map<String, Recording> mRecordings = hashMap();
+  private long mFixedLatencyMs;
+  private double mRecordedLatencyScale;
+}
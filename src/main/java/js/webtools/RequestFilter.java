@@ -44,10 +44,18 @@ public final class RequestFilter {
   public final String pathPrefix;
   public final WebRequestExecutor executor;
 
+  /**
+   * Determine if the filter applies to any port (as opposed to a particular
+   * one); this is the case for ports below 8000
+   */
+  public boolean matchesAnyPort() {
+    return port < 8000;
+  }
+
   public boolean matches(URI uri) {
     if (!uri.getHost().equals(host))
       return false;
-    if (port >= 8000 && port != uri.getPort())
+    if (!matchesAnyPort() && port != uri.getPort())
       return false;
     if (pathPrefix != null && !uri.getPath().startsWith(pathPrefix))
       return false;
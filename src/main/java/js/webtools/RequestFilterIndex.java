@@ -0,0 +1,131 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An index of RequestFilters, for finding the filter that matches a uri
+ * without examining each filter in turn.
+ * 
+ * Filters are indexed by host, then port, then path prefix (in a trie). As with
+ * RequestFilter.matches(), filters that specify a port below 8000 match any
+ * port. If more than one filter matches a uri, the one that was installed first
+ * is chosen.
+ * 
+ * The index is immutable once constructed
+ */
+final class RequestFilterIndex {
+
+  RequestFilterIndex(List<RequestFilter> filters) {
+    int order = 0;
+    for (RequestFilter f : filters) {
+      HostEntry h = mHosts.computeIfAbsent(f.host, k -> new HostEntry());
+      PathNode root;
+      if (f.matchesAnyPort())
+        root = h.anyPort;
+      else
+        root = h.ports.computeIfAbsent(f.port, k -> new PathNode());
+      root.add(nullToEmpty(f.pathPrefix), f, order);
+      order++;
+    }
+  }
+
+  /**
+   * Find the first installed filter that matches a uri, or null if there is
+   * none
+   */
+  RequestFilter find(URI uri) {
+    HostEntry h = mHosts.get(uri.getHost());
+    if (h == null)
+      return null;
+    String path = nullToEmpty(uri.getPath());
+    PathNode best = h.anyPort.find(path);
+    PathNode portRoot = h.ports.get(uri.getPort());
+    if (portRoot != null) {
+      PathNode node = portRoot.find(path);
+      if (node != null && (best == null || node.order < best.order))
+        best = node;
+    }
+    return best == null ? null : best.filter;
+  }
+
+  private static final class HostEntry {
+    final PathNode anyPort = new PathNode();
+    final Map<Integer, PathNode> ports = hashMap();
+  }
+
+  /**
+   * A node within a trie of path prefixes
+   */
+  private static final class PathNode {
+
+    void add(String prefix, RequestFilter filter, int order) {
+      PathNode node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        char c = prefix.charAt(i);
+        if (node.children == null)
+          node.children = hashMap();
+        node = node.children.computeIfAbsent(c, k -> new PathNode());
+      }
+      // Only the earliest filter with a particular prefix can ever match
+      if (node.filter == null) {
+        node.filter = filter;
+        node.order = order;
+      }
+    }
+
+    /**
+     * Find the node with the earliest filter whose prefix is a prefix of a
+     * path, or null if there is none
+     */
+    PathNode find(String path) {
+      PathNode best = null;
+      PathNode node = this;
+      int i = 0;
+      while (true) {
+        if (node.filter != null && (best == null || node.order < best.order))
+          best = node;
+        if (i == path.length() || node.children == null)
+          break;
+        node = node.children.get(path.charAt(i));
+        if (node == null)
+          break;
+        i++;
+      }
+      return best;
+    }
+
+    Map<Character, PathNode> children;
+    RequestFilter filter;
+    int order;
+  }
+
+  private final Map<String, HostEntry> mHosts = hashMap();
+}
@@ -0,0 +1,260 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import js.base.BaseObject;
+import js.json.JSMap;
+import js.webtools.WebRequest.Verb;
+
+/**
+ * Metrics for the requests made through a WebRequestManager, grouped by host
+ * (and port) and verb: request, error and retry counts, bytes sent and
+ * received, and latency distributions. Also records the time spent waiting to
+ * lease a connection from a pool, by host.
+ * 
+ * This class is threadsafe
+ */
+public final class RequestMetrics extends BaseObject implements RequestMetricsMBean {
+
+  public void recordRequest(String host, Verb verb, long latencyMs, long bytesIn, boolean error) {
+    Stats s = stats(host, verb);
+    s.requests.increment();
+    if (error)
+      s.errors.increment();
+    if (bytesIn > 0)
+      s.bytesIn.add(bytesIn);
+    s.latency.record(latencyMs);
+  }
+
+  public void recordRetry(String host, Verb verb) {
+    stats(host, verb).retries.increment();
+  }
+
+  public void recordBytesOut(String host, Verb verb, long bytesOut) {
+    if (bytesOut > 0)
+      stats(host, verb).bytesOut.add(bytesOut);
+  }
+
+  public void recordLeaseWait(String host, long waitMs) {
+    mLeaseWaits.computeIfAbsent(host, k -> new Histogram()).record(waitMs);
+  }
+
+  /**
+   * Discard all recorded metrics
+   */
+  public void reset() {
+    mStats.clear();
+    mLeaseWaits.clear();
+  }
+
+  /**
+   * Construct a json map summarizing the metrics
+   */
+  public JSMap snapshot() {
+    JSMap hosts = map();
+    for (Map.Entry<String, Stats> ent : mStats.entrySet()) {
+      String key = ent.getKey();
+      int sep = key.lastIndexOf(' ');
+      String host = key.substring(0, sep);
+      JSMap hostMap = hosts.optJSMap(host);
+      if (hostMap == null) {
+        hostMap = map();
+        hosts.put(host, hostMap);
+      }
+      hostMap.put(key.substring(sep + 1), ent.getValue().toJson());
+    }
+    JSMap leaseWaits = map();
+    for (Map.Entry<String, Histogram> ent : mLeaseWaits.entrySet())
+      leaseWaits.put(ent.getKey(), ent.getValue().toJson());
+    return map().put("hosts", hosts).put("lease_wait_ms", leaseWaits);
+  }
+
+  @Override
+  public JSMap toJson() {
+    return snapshot();
+  }
+
+  // ------------------------------------------------------------------
+  // JMX
+  // ------------------------------------------------------------------
+
+  /**
+   * Register these metrics with the platform MBean server, under the name
+   * "js.webtools:type=RequestMetrics,name=<name>"
+   */
+  public void registerMBean(String name) {
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+          new ObjectName("js.webtools:type=RequestMetrics,name=" + ObjectName.quote(name)));
+    } catch (Exception e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  @Override
+  public long getRequestCount() {
+    long total = 0;
+    for (Stats s : mStats.values())
+      total += s.requests.sum();
+    return total;
+  }
+
+  @Override
+  public long getErrorCount() {
+    long total = 0;
+    for (Stats s : mStats.values())
+      total += s.errors.sum();
+    return total;
+  }
+
+  @Override
+  public long getRetryCount() {
+    long total = 0;
+    for (Stats s : mStats.values())
+      total += s.retries.sum();
+    return total;
+  }
+
+  @Override
+  public String getSnapshot() {
+    return snapshot().prettyPrint();
+  }
+
+  // ------------------------------------------------------------------
+
+  private Stats stats(String host, Verb verb) {
+    return mStats.computeIfAbsent(host + " " + verb.name(), k -> new Stats());
+  }
+
+  private static final class Stats {
+    final LongAdder requests = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    final LongAdder retries = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final Histogram latency = new Histogram();
+
+    JSMap toJson() {
+      return map() //
+          .put("requests", requests.sum()) //
+          .put("errors", errors.sum()) //
+          .put("retries", retries.sum()) //
+          .put("bytes_in", bytesIn.sum()) //
+          .put("bytes_out", bytesOut.sum()) //
+          .put("latency_ms", latency.toJson());
+    }
+  }
+
+  /**
+   * A histogram of non-negative values, with log-linear buckets (in the style
+   * of HdrHistogram): values below 16 are recorded exactly; larger values fall
+   * into one of 8 buckets per power of two, for a precision of about 12%
+   */
+  static final class Histogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int LINEAR_LIMIT = 16;
+    private static final int BUCKET_COUNT = LINEAR_LIMIT + (63 - 4) * SUB_BUCKETS;
+
+    void record(long value) {
+      value = Math.max(0, value);
+      mCounts.incrementAndGet(bucketIndex(value));
+      mTotal.add(value);
+      mCount.increment();
+      long max;
+      while ((max = mMax) < value) {
+        synchronized (this) {
+          if (mMax == max)
+            mMax = value;
+        }
+      }
+    }
+
+    /**
+     * Get the (approximate) value at a percentile
+     * 
+     * @param percentile
+     *          0...100
+     */
+    long valueAtPercentile(double percentile) {
+      long count = mCount.sum();
+      if (count == 0)
+        return 0;
+      long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        seen += mCounts.get(i);
+        if (seen >= target)
+          return Math.min(bucketUpperBound(i), mMax);
+      }
+      return mMax;
+    }
+
+    JSMap toJson() {
+      long count = mCount.sum();
+      return map() //
+          .put("count", count) //
+          .put("mean", count == 0 ? 0 : mTotal.sum() / count) //
+          .put("p50", valueAtPercentile(50)) //
+          .put("p90", valueAtPercentile(90)) //
+          .put("p99", valueAtPercentile(99)) //
+          .put("max", mMax);
+    }
+
+    private static int bucketIndex(long value) {
+      if (value < LINEAR_LIMIT)
+        return (int) value;
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+      return LINEAR_LIMIT + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long bucketUpperBound(int index) {
+      if (index < LINEAR_LIMIT)
+        return index;
+      int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + 4;
+      int sub = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+      long lower = ((long) (SUB_BUCKETS + sub)) << (exponent - 3);
+      return lower + (1L << (exponent - 3)) - 1;
+    }
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder mTotal = new LongAdder();
+    private final LongAdder mCount = new LongAdder();
+    private volatile long mMax;
+  }
+
+  private final Map<String, Stats> mStats = concurrentHashMap();
+  private final Map<String, Histogram> mLeaseWaits = concurrentHashMap();
+}
@@ -0,0 +1,159 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import js.base.BaseObject;
+import js.base.DateTimeTools;
+import js.json.JSMap;
+import js.webtools.WebRequest.Verb;
+
+/**
+ * Determines whether, and when, a failed WebRequest is to be retried.
+ * 
+ * Retries are attempted only for failures that the executor reports as
+ * retryable (see WebRequestExecutor.canRetryAfter()), or for http responses
+ * with status 429 (too many requests) or 503 (service unavailable). Delays
+ * between attempts grow exponentially, with random jitter; a Retry-After delay
+ * supplied by the server takes precedence if it is longer. Requests whose verb
+ * is not idempotent (i.e. POST) are not retried unless explicitly allowed.
+ */
+public final class RetryPolicy extends BaseObject {
+
+  public static final int SC_TOO_MANY_REQUESTS = 429;
+  public static final int SC_SERVICE_UNAVAILABLE = 503;
+
+  /**
+   * Set the maximum number of attempts (including the first)
+   */
+  public RetryPolicy withMaxAttempts(int maxAttempts) {
+    checkArgument(maxAttempts > 0);
+    mMaxAttempts = maxAttempts;
+    return this;
+  }
+
+  /**
+   * Set the delay before the first retry; this is doubled for each subsequent
+   * retry, up to the maximum delay
+   */
+  public RetryPolicy withInitialDelay(long delayMs) {
+    checkArgument(delayMs >= 0);
+    mInitialDelayMs = delayMs;
+    return this;
+  }
+
+  public RetryPolicy withMaxDelay(long delayMs) {
+    checkArgument(delayMs >= 0);
+    mMaxDelayMs = delayMs;
+    return this;
+  }
+
+  /**
+   * Set the total time allowed for all attempts; no retry is attempted if it
+   * would start after this deadline
+   */
+  public RetryPolicy withDeadline(long deadlineMs) {
+    checkArgument(deadlineMs > 0);
+    mDeadlineMs = deadlineMs;
+    return this;
+  }
+
+  /**
+   * Allow retrying requests whose verb is not idempotent
+   */
+  public RetryPolicy withNonIdempotentRetries(boolean flag) {
+    mRetryNonIdempotent = flag;
+    return this;
+  }
+
+  public int maxAttempts() {
+    return mMaxAttempts;
+  }
+
+  /**
+   * Determine if an http response status code indicates a (possibly) temporary
+   * condition that should be retried
+   */
+  public boolean retriesStatusCode(int statusCode) {
+    return statusCode == SC_TOO_MANY_REQUESTS || statusCode == SC_SERVICE_UNAVAILABLE;
+  }
+
+  /**
+   * Determine how long to wait before retrying a request that failed
+   * 
+   * @param attemptsMade
+   *          number of attempts made so far
+   * @param elapsedMs
+   *          time elapsed since the first attempt started
+   * @return delay in milliseconds, or -1 if request is not to be retried
+   */
+  public long delayBeforeRetry(Verb verb, WebRequestExecutor executor, Throwable throwable, int attemptsMade,
+      long elapsedMs) {
+    if (attemptsMade >= mMaxAttempts)
+      return -1;
+    if (!verb.isIdempotent() && !mRetryNonIdempotent)
+      return -1;
+
+    long retryAfterMs = 0;
+    if (throwable instanceof HttpStatusException) {
+      HttpStatusException e = (HttpStatusException) throwable;
+      if (!retriesStatusCode(e.statusCode()))
+        return -1;
+      retryAfterMs = e.retryAfterMs();
+    } else if (!executor.canRetryAfter(throwable))
+      return -1;
+
+    // Exponential backoff, with 'equal' jitter: half the delay is fixed, the other half random
+    long backoff = mInitialDelayMs << Math.min(attemptsMade - 1, 30);
+    backoff = Math.min(backoff, mMaxDelayMs);
+    long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+    delay = Math.max(delay, retryAfterMs);
+
+    if (elapsedMs + delay >= mDeadlineMs)
+      return -1;
+    log("retrying after", delay, "ms; attempts made:", attemptsMade, "throwable:", throwable);
+    return delay;
+  }
+
+  @Override
+  public JSMap toJson() {
+    JSMap m = super.toJson();
+    m.put("max_attempts", mMaxAttempts);
+    m.put("initial_delay_ms", mInitialDelayMs);
+    m.put("max_delay_ms", mMaxDelayMs);
+    m.put("deadline_ms", mDeadlineMs);
+    m.put("retry_non_idempotent", mRetryNonIdempotent);
+    return m;
+  }
+
+  private int mMaxAttempts = 3;
+  private long mInitialDelayMs = 200;
+  private long mMaxDelayMs = DateTimeTools.SECONDS(10);
+  private long mDeadlineMs = DateTimeTools.SECONDS(60);
+  private boolean mRetryNonIdempotent;
+}
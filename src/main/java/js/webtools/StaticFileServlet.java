@@ -0,0 +1,442 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import js.webtools.WebRequest.Verb;
+
+/**
+ * A servlet that serves files from a directory.
+ * 
+ * Files are streamed from a FileChannel; small files are cached in memory
+ * (with least-recently-used eviction). Supports single byte ranges (206
+ * responses), and conditional requests using strong ETags and modification
+ * times (304 responses).
+ * 
+ * Compressible files are gzipped by the servlet itself (rather than by
+ * WebResponse), so the gzip representation gets its own ETag, and cached files
+ * are compressed only once
+ */
+public class StaticFileServlet extends OurServlet {
+
+  public StaticFileServlet(File rootDirectory) {
+    checkArgument(rootDirectory.isDirectory(), "no such directory:", rootDirectory);
+    try {
+      mRootDirectory = rootDirectory.getCanonicalFile();
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  @Override
+  public String getNameForTests() {
+    return "static_files";
+  }
+
+  /**
+   * Set the path prefix the servlet is registered for; it is removed from
+   * request paths to determine which file is requested
+   */
+  public StaticFileServlet withPathPrefix(String pathPrefix) {
+    WebTools.verifyPathPrefix(pathPrefix);
+    mPrefixElements = split(chompPrefix(pathPrefix, "/"), '/');
+    return this;
+  }
+
+  /**
+   * Set the limits for caching files in memory
+   * 
+   * @param maxFileSize
+   *          files larger than this aren't cached
+   * @param maxTotalBytes
+   *          maximum total size of cached files; zero to disable caching
+   */
+  public StaticFileServlet withCacheLimits(int maxFileSize, long maxTotalBytes) {
+    checkArgument(maxFileSize >= 0 && maxTotalBytes >= 0);
+    mMaxCachedFileSize = maxFileSize;
+    mMaxCachedBytes = maxTotalBytes;
+    clearCache();
+    return this;
+  }
+
+  /**
+   * Set the max-age value for the Cache-Control response header
+   */
+  public StaticFileServlet withMaxAge(int seconds) {
+    checkArgument(seconds >= 0);
+    mMaxAgeSeconds = seconds;
+    return this;
+  }
+
+  public void clearCache() {
+    synchronized (mCache) {
+      mCache.clear();
+      mCachedBytes = 0;
+    }
+  }
+
+  // ------------------------------------------------------------------
+  // Servicing requests
+  // ------------------------------------------------------------------
+
+  @Override
+  public void serviceRequest(WebResponse response) throws Exception {
+    if (response.getVerb() != Verb.GET) {
+      response.setResponseHeader("Allow", "GET");
+      sendStatus(response, SC_METHOD_NOT_ALLOWED);
+      return;
+    }
+
+    File file = resolveFile(response);
+    if (file == null) {
+      sendStatus(response, SC_NOT_FOUND);
+      return;
+    }
+
+    long length = file.length();
+    long lastModified = file.lastModified();
+    String contentType = WebTools.determineContentType(file.getName());
+    if (contentType.isEmpty())
+      contentType = "application/octet-stream";
+
+    // The servlet does its own compression; see the class comment
+    response.setCompression(false);
+    boolean compressible = isCompressible(contentType, length);
+    boolean gzip = compressible && WebResponse.acceptsGzip(response.requestHeader("Accept-Encoding"));
+    String etag = etag(length, lastModified, false);
+
+    if (compressible)
+      response.setResponseHeader("Vary", "Accept-Encoding");
+    response.setResponseHeader("Last-Modified", formatHttpDate(lastModified));
+    response.setResponseHeader("Accept-Ranges", "bytes");
+    if (mMaxAgeSeconds > 0)
+      response.setResponseHeader("Cache-Control", "max-age=" + mMaxAgeSeconds);
+
+    String selectedEtag = etag(length, lastModified, gzip);
+    if (notModified(response, selectedEtag, lastModified)) {
+      response.setResponseHeader("ETag", selectedEtag);
+      response.setStatusCode(SC_NOT_MODIFIED);
+      response.setOutput(contentType, EMPTY_BODY);
+      return;
+    }
+
+    // Ranges refer to the identity representation, so they are never compressed
+    long[] range = null;
+    String rangeHeader = response.requestHeader("Range");
+    if (rangeHeader != null && ifRangeMatches(response.requestHeader("If-Range"), etag, lastModified)) {
+      range = parseRange(rangeHeader, length);
+      if (range == RANGE_NOT_SATISFIABLE) {
+        response.setResponseHeader("Content-Range", "bytes */" + length);
+        sendStatus(response, SC_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+    }
+
+    CachedFile cached = cachedContent(file, length, lastModified, compressible);
+
+    if (range != null) {
+      long start = range[0];
+      long count = range[1] - range[0] + 1;
+      response.setResponseHeader("ETag", etag);
+      response.setStatusCode(SC_PARTIAL_CONTENT);
+      response.setResponseHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+      if (cached != null)
+        response.setOutput(contentType, Arrays.copyOfRange(cached.content, (int) start, (int) (start + count)));
+      else
+        response.setOutput(contentType, file, start, count);
+      return;
+    }
+
+    response.setResponseHeader("ETag", selectedEtag);
+    if (!gzip) {
+      if (cached != null)
+        response.setOutput(contentType, cached.content);
+      else
+        response.setOutput(contentType, file);
+      return;
+    }
+
+    response.setResponseHeader("Content-Encoding", "gzip");
+    if (cached != null)
+      response.setOutput(contentType, cached.gzipContent);
+    else
+      response.setOutput(contentType, out -> {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            GZIPOutputStream gzipOut = new GZIPOutputStream(out, 8192)) {
+          WebResponse.transfer(channel, 0, channel.size(), gzipOut);
+        }
+      });
+  }
+
+  /**
+   * Determine if a file is worth compressing for clients that accept gzip
+   */
+  private static boolean isCompressible(String contentType, long length) {
+    return length >= WebResponse.COMPRESSION_THRESHOLD && WebResponse.isCompressible(contentType);
+  }
+
+  private static void sendStatus(WebResponse response, int statusCode) {
+    response.setCompression(false);
+    response.setStatusCode(statusCode);
+    response.setOutput("text/plain", EMPTY_BODY);
+  }
+
+  /**
+   * Determine the file that is the target of a request, or null if there is
+   * no such file (or the request is for a file outside the root directory)
+   */
+  private File resolveFile(WebResponse response) throws IOException {
+    for (String element : mPrefixElements)
+      if (!response.readElementIf(element))
+        return null;
+    File file = mRootDirectory;
+    while (response.hasNextElement()) {
+      String element = response.nextElement();
+      // Ignore empty elements, e.g. from a trailing slash
+      if (element.isEmpty())
+        continue;
+      if (element.equals(".") || element.equals("..") || element.indexOf('\\') >= 0)
+        return null;
+      file = new File(file, element);
+    }
+    if (file.isDirectory())
+      file = new File(file, INDEX_FILE);
+    if (!file.isFile())
+      return null;
+    // Reject files that are reached through links leading outside the root directory
+    if (!file.getCanonicalPath().startsWith(mRootDirectory.getPath() + File.separator))
+      return null;
+    return file;
+  }
+
+  // ------------------------------------------------------------------
+  // Conditional requests
+  // ------------------------------------------------------------------
+
+  /**
+   * Construct a strong ETag for a file; the gzip representation gets a
+   * distinct one, since its bytes differ
+   */
+  private static String etag(long length, long lastModified, boolean gzip) {
+    return "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(length) + (gzip ? "-gz" : "") + "\"";
+  }
+
+  private static boolean notModified(WebResponse response, String etag, long lastModified) {
+    String ifNoneMatch = response.requestHeader("If-None-Match");
+    // If-None-Match takes precedence over If-Modified-Since
+    if (ifNoneMatch != null)
+      return etagListMatches(ifNoneMatch, etag);
+    String ifModifiedSince = response.requestHeader("If-Modified-Since");
+    if (ifModifiedSince != null) {
+      long since = parseHttpDate(ifModifiedSince);
+      // Http dates have a resolution of one second
+      return since >= 0 && lastModified / 1000 <= since / 1000;
+    }
+    return false;
+  }
+
+  private static boolean etagListMatches(String etagList, String etag) {
+    for (String item : split(etagList, ',')) {
+      String tag = item.trim();
+      if (tag.equals("*") || tag.equals(etag) || tag.equals("W/" + etag))
+        return true;
+    }
+    return false;
+  }
+
+  /**
+   * Determine if a range request should be honored, given its If-Range header
+   * (if any)
+   */
+  private static boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+    if (ifRange == null)
+      return true;
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\""))
+      return ifRange.equals(etag);
+    return parseHttpDate(ifRange) / 1000 == lastModified / 1000;
+  }
+
+  private static String formatHttpDate(long timeMs) {
+    return DateTimeFormatter.RFC_1123_DATE_TIME
+        .format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(timeMs), ZoneOffset.UTC));
+  }
+
+  /**
+   * Parse an http date, returning -1 if it is malformed
+   */
+  private static long parseHttpDate(String text) {
+    try {
+      return ZonedDateTime.parse(text.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+    } catch (DateTimeParseException e) {
+      return -1;
+    }
+  }
+
+  // ------------------------------------------------------------------
+  // Range requests
+  // ------------------------------------------------------------------
+
+  /**
+   * Parse a Range header. Only a single range is supported; if the header is
+   * malformed or has multiple ranges, it is ignored (and null is returned)
+   * 
+   * @return [first, last] byte positions (inclusive), or RANGE_NOT_SATISFIABLE
+   */
+  static long[] parseRange(String header, long length) {
+    header = header.trim();
+    if (!header.startsWith("bytes=") || header.indexOf(',') >= 0)
+      return null;
+    String spec = header.substring(6).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0)
+      return null;
+    try {
+      String firstText = spec.substring(0, dash).trim();
+      String lastText = spec.substring(dash + 1).trim();
+      long first;
+      long last;
+      if (firstText.isEmpty()) {
+        // A suffix range: the final n bytes
+        long suffixLength = Long.parseLong(lastText);
+        if (suffixLength <= 0 || length == 0)
+          return RANGE_NOT_SATISFIABLE;
+        first = Math.max(0, length - suffixLength);
+        last = length - 1;
+      } else {
+        first = Long.parseLong(firstText);
+        last = lastText.isEmpty() ? length - 1 : Math.min(Long.parseLong(lastText), length - 1);
+        if (first < 0 || first > last)
+          return first >= length ? RANGE_NOT_SATISFIABLE : null;
+      }
+      return new long[] { first, last };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  private static final long[] RANGE_NOT_SATISFIABLE = new long[0];
+
+  // ------------------------------------------------------------------
+  // Memory cache
+  // ------------------------------------------------------------------
+
+  /**
+   * Get a file's contents from the cache, reading it (and caching it) if
+   * necessary; or null if the file is too large to cache
+   * 
+   * @param compressible
+   *          if true, the gzipped contents are cached as well
+   */
+  private CachedFile cachedContent(File file, long length, long lastModified, boolean compressible) {
+    if (length > mMaxCachedFileSize || mMaxCachedBytes == 0)
+      return null;
+    String key = file.getPath();
+    synchronized (mCache) {
+      CachedFile cached = mCache.get(key);
+      if (cached != null && cached.length == length && cached.lastModified == lastModified)
+        return cached;
+    }
+    CachedFile cached;
+    try {
+      byte[] content = java.nio.file.Files.readAllBytes(file.toPath());
+      cached = new CachedFile(content, compressible ? WebResponse.gzip(content) : null, lastModified);
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+    // If the file changed while we were reading it, don't cache it
+    if (cached.length != length || file.lastModified() != lastModified)
+      return cached;
+    synchronized (mCache) {
+      CachedFile previous = mCache.put(key, cached);
+      if (previous != null)
+        mCachedBytes -= previous.size;
+      mCachedBytes += cached.size;
+      Iterator<CachedFile> iter = mCache.values().iterator();
+      while (mCachedBytes > mMaxCachedBytes && iter.hasNext()) {
+        mCachedBytes -= iter.next().size;
+        iter.remove();
+      }
+    }
+    return cached;
+  }
+
+  private static final class CachedFile {
+    CachedFile(byte[] content, byte[] gzipContent, long lastModified) {
+      this.content = content;
+      this.gzipContent = gzipContent;
+      this.length = content.length;
+      this.size = content.length + (gzipContent == null ? 0 : gzipContent.length);
+      this.lastModified = lastModified;
+    }
+
+    final byte[] content;
+    // Null if the file isn't compressible
+    final byte[] gzipContent;
+    final long length;
+    // Number of bytes the entry occupies in memory
+    final long size;
+    final long lastModified;
+  }
+
+  private static final byte[] EMPTY_BODY = new byte[0];
+
+  private static final String INDEX_FILE = "index.html";
+
+  private static final int SC_PARTIAL_CONTENT = 206;
+  private static final int SC_NOT_MODIFIED = 304;
+  private static final int SC_NOT_FOUND = 404;
+  private static final int SC_METHOD_NOT_ALLOWED = 405;
+  private static final int SC_RANGE_NOT_SATISFIABLE = 416;
+
+  private static final int DEFAULT_MAX_CACHED_FILE_SIZE = 64 * 1024;
+  private static final long DEFAULT_MAX_CACHED_BYTES = 16 * 1024 * 1024;
+
+  private final File mRootDirectory;
+  private List<String> mPrefixElements = arrayList();
+  private int mMaxCachedFileSize = DEFAULT_MAX_CACHED_FILE_SIZE;
+  private long mMaxCachedBytes = DEFAULT_MAX_CACHED_BYTES;
+  private int mMaxAgeSeconds;
+  private long mCachedBytes;
+  // Access-ordered, so iteration starts with the least recently used file
+  private final Map<String, CachedFile> mCache = new LinkedHashMap<>(16, 0.75f, true);
+}
@@ -27,8 +27,17 @@ package js.webtools;
 import static js.base.Tools.*;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import org.apache.http.NameValuePair;
 import org.apache.http.message.BasicNameValuePair;
@@ -55,6 +64,14 @@ public final class WebRequest extends BaseObject {
   public enum Verb {
     GET, POST, DELETE, PUT;
 
+    /**
+     * Determine if repeating a request with this verb has the same effect as
+     * making it once
+     */
+    public boolean isIdempotent() {
+      return this != POST;
+    }
+
     public static Verb withName(String name, boolean mustExist) {
       if (mustExist)
         return Verb.valueOf(name);
@@ -121,12 +138,44 @@ public final class WebRequest extends BaseObject {
     return this;
   }
 
+  /**
+   * Send the contents of a file as the body of a POST request. The file is
+   * streamed from disk; any parameters are added to the uri
+   */
   public WebRequest setPostFile(File file) {
     //testOnlyAssert();
     mPostFile = file;
     return setPost();
   }
 
+  /**
+   * Set a listener to be notified as the request body (e.g., a post or upload
+   * file) is sent
+   */
+  public WebRequest setUploadProgressListener(UploadProgressListener listener) {
+    assertUnsent();
+    mUploadProgressListener = listener;
+    return this;
+  }
+
+  public UploadProgressListener getUploadProgressListener() {
+    return mUploadProgressListener;
+  }
+
+  /**
+   * Send the request body with chunked transfer encoding, rather than with a
+   * Content-Length header
+   */
+  public WebRequest setChunkedUpload(boolean chunked) {
+    assertUnsent();
+    mChunkedUpload = chunked;
+    return this;
+  }
+
+  public boolean isChunkedUpload() {
+    return mChunkedUpload;
+  }
+
   public WebRequest setPut() {
     setVerb(Verb.PUT);
     return this;
@@ -137,6 +186,10 @@ public final class WebRequest extends BaseObject {
     return this;
   }
 
+  /**
+   * Set the default timeout, which applies to connecting, reading, and leasing
+   * a connection from a pool (unless these are set individually)
+   */
   public WebRequest setTimeout(int timeoutMs) {
     assertUnsent();
     checkArgument(timeoutMs > 0);
@@ -144,6 +197,71 @@ public final class WebRequest extends BaseObject {
     return this;
   }
 
+  /**
+   * Set the timeout for establishing a connection
+   */
+  public WebRequest setConnectTimeout(int timeoutMs) {
+    assertUnsent();
+    checkArgument(timeoutMs > 0);
+    mConnectTimeout = timeoutMs;
+    return this;
+  }
+
+  /**
+   * Set the maximum time to wait for data while reading the response
+   */
+  public WebRequest setReadTimeout(int timeoutMs) {
+    assertUnsent();
+    checkArgument(timeoutMs > 0);
+    mReadTimeout = timeoutMs;
+    return this;
+  }
+
+  /**
+   * Set the maximum time to wait to lease a connection from a pool
+   */
+  public WebRequest setPoolTimeout(int timeoutMs) {
+    assertUnsent();
+    checkArgument(timeoutMs > 0);
+    mPoolTimeout = timeoutMs;
+    return this;
+  }
+
+  /**
+   * Set the total time allowed for the request, including any retries. This
+   * bounds the request even if a slow trickle of data keeps the read timeout
+   * from expiring.
+   * 
+   * If the request is sent by a thread that has a deadline (see Deadline), the
+   * earlier of the two deadlines applies
+   */
+  public WebRequest setTotalTimeout(int timeoutMs) {
+    assertUnsent();
+    checkArgument(timeoutMs > 0);
+    mTotalTimeout = timeoutMs;
+    return this;
+  }
+
+  /**
+   * Set the policy for retrying the request if it fails; if none is set, the
+   * manager's default policy (if any) is used
+   */
+  public WebRequest setRetryPolicy(RetryPolicy retryPolicy) {
+    assertUnsent();
+    mRetryPolicy = retryPolicy;
+    return this;
+  }
+
+  /**
+   * Get the retry policy in effect for the request, or null if it is not to be
+   * retried
+   */
+  public RetryPolicy getRetryPolicy() {
+    if (mRetryPolicy != null)
+      return mRetryPolicy;
+    return getManager().getDefaultRetryPolicy();
+  }
+
   public WebRequest addHeader(String name, String value) {
     assertUnsent();
     mHeaders.add(name);
@@ -160,6 +278,31 @@ public final class WebRequest extends BaseObject {
     return mURI;
   }
 
+  /**
+   * Get a string identifying the request's host and port; available whether or
+   * not the request has been sent
+   */
+  String hostKey() {
+    if (sent())
+      return hostKey(mURI.getScheme(), mURI.getHost(), mURI.getPort());
+    return hostKey(mURIBuilder.getScheme(), mURIBuilder.getHost(), mURIBuilder.getPort());
+  }
+
+  /**
+   * Construct a string identifying a host and port, for recording metrics. If
+   * the port is missing (-1), the scheme's default port is used, so the key
+   * matches one constructed from a resolved route
+   */
+  static String hostKey(String scheme, String host, int port) {
+    if (port < 0) {
+      if ("http".equalsIgnoreCase(scheme))
+        port = 80;
+      else if ("https".equalsIgnoreCase(scheme))
+        port = 443;
+    }
+    return host + ":" + port;
+  }
+
   /**
    * Get the json map that contains the request parameters, for read-only
    * purposes
@@ -197,6 +340,46 @@ public final class WebRequest extends BaseObject {
     return mTimeout;
   }
 
+  public int getConnectTimeout() {
+    return clampToDeadline(mConnectTimeout > 0 ? mConnectTimeout : mTimeout);
+  }
+
+  public int getReadTimeout() {
+    return clampToDeadline(mReadTimeout > 0 ? mReadTimeout : mTimeout);
+  }
+
+  public int getPoolTimeout() {
+    return clampToDeadline(mPoolTimeout > 0 ? mPoolTimeout : mTimeout);
+  }
+
+  /**
+   * Determine if the request has a deadline (set when it is sent)
+   */
+  public boolean hasDeadline() {
+    return mDeadline != 0;
+  }
+
+  /**
+   * Get the time remaining (in milliseconds) before the request's deadline,
+   * which may be zero; or Long.MAX_VALUE if it has none
+   */
+  public long remainingTime() {
+    if (!hasDeadline())
+      return Long.MAX_VALUE;
+    return Math.max(0, mDeadline - System.currentTimeMillis());
+  }
+
+  private int clampToDeadline(int timeoutMs) {
+    if (!hasDeadline())
+      return timeoutMs;
+    return (int) Math.max(1, Math.min(timeoutMs, remainingTime()));
+  }
+
+  private void assertDeadlineNotPassed() {
+    if (hasDeadline() && remainingTime() == 0)
+      throw badState("deadline exceeded for request:", mURI);
+  }
+
   public File getPostFile() {
     return mPostFile;
   }
@@ -215,7 +398,11 @@ public final class WebRequest extends BaseObject {
    */
   public JSMap resultMap() {
     makeRequest();
-    return mResultMap;
+    synchronized (this) {
+      if (mResultMap == null)
+        mResultMap = parseResultMap(mFetchedString, mResponseInfo);
+      return mResultMap;
+    }
   }
 
   /**
@@ -234,37 +421,392 @@ public final class WebRequest extends BaseObject {
   }
 
   /**
-   * Perform request (if not already done), and store result in mFetchedString
+   * Perform request (if not already), and return information about the
+   * response (status code, headers, etc.); or null if the executor didn't
+   * supply any (e.g., if the request failed without a response)
    */
-  private void makeRequest() {
-    if (mFetchedString != null)
-      return;
+  public WebResponseInfo responseInfo() {
+    makeRequest();
+    return mResponseInfo;
+  }
 
-    setSent();
+  /**
+   * Get the response information stored by the executor, without performing
+   * the request; for executors that wrap other executors
+   */
+  WebResponseInfo storedResponseInfo() {
+    return mResponseInfo;
+  }
+
+  /**
+   * Store information about the response; called by the executor. If the
+   * request is attempted more than once, this reflects the last attempt
+   */
+  public void setResponseInfo(WebResponseInfo info) {
+    assertSent();
+    mResponseInfo = info;
+  }
 
-    WebRequestExecutor ex = getEffectiveExecutor();
+  /**
+   * Perform request, passing the response body as a stream to a handler instead
+   * of storing it. The request must not have been sent already.
+   * 
+   * Afterward, resultMap() will report any error that occurred, but the body is
+   * not otherwise available
+   */
+  public WebRequest resultToHandler(ResponseBodyHandler handler) {
+    CompletableFuture<WebRequest> completion = new CompletableFuture<>();
+    synchronized (this) {
+      setSent();
+      mAsyncResult = completion;
+    }
+    // Perform the request without holding the lock, so a virtual thread blocked on
+    // the request doesn't pin its carrier thread
+    Throwable failure = null;
     try {
-      mFetchedString = ex.makeRequest(this);
+      WebRequestExecutor ex = getEffectiveExecutor();
+      withRetries(ex, () -> {
+        ex.makeRequest(this, handler);
+        return null;
+      });
+    } catch (Throwable t) {
+      failure = t;
+    }
+    synchronized (this) {
+      if (failure != null)
+        storeFailure(failure);
+      else {
+        mFetchedString = "";
+        getOrBuildResultMap();
+      }
+      recordMetrics();
+    }
+    completion.complete(this);
+    return this;
+  }
 
-      // Attempt to parse the result string as a json map directly.
-      // If that fails, then construct a json map with an entry
-      // for either a json list (if result string successfully parsed as one),
-      // or a string (the result string).
+  /**
+   * Perform request, copying the response body directly to a file
+   */
+  public WebRequest resultToFile(File file) {
+    return resultToHandler(body -> {
+      try (OutputStream out = new FileOutputStream(file)) {
+        body.transferTo(out);
+      }
+    });
+  }
 
+  /**
+   * Send the request asynchronously (if not already sent). The returned future
+   * completes (with this request) once the results are available; any failure
+   * is reported through the result map, as with the synchronous methods.
+   * 
+   * The result methods (resultMap(), etc.) can still be called; they will block
+   * until the request completes
+   */
+  public synchronized CompletableFuture<WebRequest> sendAsync() {
+    if (mAsyncResult == null) {
+      // If the request was already performed synchronously, its results are available
+      if (sent()) {
+        mAsyncResult = CompletableFuture.completedFuture(this);
+        return mAsyncResult;
+      }
+      WebRequestExecutor ex;
       try {
-        mResultMap = new JSMap(mFetchedString);
+        setSent();
+        ex = getEffectiveExecutor();
       } catch (Throwable t) {
-        try {
-          JSList list = new JSList(mFetchedString);
-          getOrBuildResultMap().put(WebTools.LIST, list);
-        } catch (Throwable t2) {
-          getOrBuildResultMap().put(WebTools.TEXT, mFetchedString);
+        // E.g., the uri is malformed; report the failure through the result map
+        mSentFlag = true;
+        storeFailure(t);
+        mAsyncResult = CompletableFuture.completedFuture(this);
+        return mAsyncResult;
+      }
+      CompletableFuture<String> future;
+      if (isSingleFlightCandidate())
+        future = shareInFlight(ex, () -> makeRequestAsync(ex, 1, System.currentTimeMillis()));
+      else
+        future = makeRequestAsync(ex, 1, System.currentTimeMillis());
+      mAsyncResult = future.handle((str, throwable) -> {
+        synchronized (this) {
+          if (throwable != null)
+            storeFailure(unwrapAsyncThrowable(throwable));
+          else
+            storeResult(str);
+          recordMetrics();
         }
+        return this;
+      });
+    }
+    return mAsyncResult;
+  }
+
+  /**
+   * Perform request (if not already done), and store result in mFetchedString
+   */
+  private void makeRequest() {
+    CompletableFuture<WebRequest> pending;
+    CompletableFuture<WebRequest> completion = new CompletableFuture<>();
+    synchronized (this) {
+      if (mFetchedString != null)
+        return;
+      pending = mAsyncResult;
+      if (pending == null) {
+        setSent();
+        mAsyncResult = completion;
       }
+    }
+
+    if (pending != null) {
+      // Another thread (or an asynchronous send) is performing the request; wait for it
+      // outside of the lock, since the completion handler needs it
+      pending.join();
+      return;
+    }
+
+    // Perform the request without holding the lock, so a virtual thread blocked on
+    // the request (or sleeping between retries) doesn't pin its carrier thread
+    String result = null;
+    Throwable failure = null;
+    try {
+      WebRequestExecutor ex = getEffectiveExecutor();
+      if (isSingleFlightCandidate()) {
+        result = shareInFlight(ex, () -> {
+          try {
+            return CompletableFuture.completedFuture(makeRequestWithRetries(ex));
+          } catch (Throwable t) {
+            return CompletableFuture.failedFuture(t);
+          }
+        }).join();
+      } else
+        result = makeRequestWithRetries(ex);
     } catch (Throwable t) {
-      mFetchedString = t.getMessage();
-      setThrowable(t);
+      failure = unwrapAsyncThrowable(t);
+    }
+    synchronized (this) {
+      if (failure != null)
+        storeFailure(failure);
+      else
+        storeResult(result);
+      recordMetrics();
     }
+    completion.complete(this);
+  }
+
+  // ------------------------------------------------------------------
+  // Single-flight requests
+  // ------------------------------------------------------------------
+
+  /**
+   * Determine if the request can share its execution with identical requests
+   * in flight
+   */
+  private boolean isSingleFlightCandidate() {
+    return getManager().singleFlight() && getVerb() == Verb.GET && mUploadFile == null && mPostFile == null;
+  }
+
+  private SingleFlightKey singleFlightKey(WebRequestExecutor ex) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(mURI);
+    for (String s : mHeaders) {
+      sb.append('\n');
+      sb.append(s);
+    }
+    if (mUserName != null) {
+      sb.append('\n');
+      sb.append(mUserName);
+      sb.append(':');
+      sb.append(mPassword);
+    }
+    return new SingleFlightKey(ex, sb.toString());
+  }
+
+  /**
+   * Identifies requests that can share an execution: they must be identical,
+   * and be made by the same executor
+   */
+  private static final class SingleFlightKey {
+    SingleFlightKey(WebRequestExecutor executor, String request) {
+      this.executor = executor;
+      this.request = request;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (!(object instanceof SingleFlightKey))
+        return false;
+      SingleFlightKey other = (SingleFlightKey) object;
+      return executor == other.executor && request.equals(other.request);
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(executor) * 31 + request.hashCode();
+    }
+
+    final WebRequestExecutor executor;
+    final String request;
+  }
+
+  /**
+   * The result of a request, as shared with identical requests
+   */
+  private static final class SharedResult {
+    SharedResult(String body, WebResponseInfo responseInfo) {
+      this.body = body;
+      this.responseInfo = responseInfo;
+    }
+
+    final String body;
+    final WebResponseInfo responseInfo;
+  }
+
+  /**
+   * Perform an operation to make the request, unless an identical request is
+   * already in flight, in which case wait for its result instead
+   */
+  private CompletableFuture<String> shareInFlight(WebRequestExecutor ex,
+      Supplier<CompletableFuture<String>> operation) {
+    return getManager().shareInFlight(singleFlightKey(ex), //
+        () -> operation.get().thenApply(body -> new SharedResult(body, mResponseInfo))) //
+        .thenApply(result -> {
+          mResponseInfo = result.responseInfo;
+          return result.body;
+        });
+  }
+
+  // ------------------------------------------------------------------
+
+  /**
+   * Call the executor to make the request, retrying according to the retry
+   * policy
+   */
+  private String makeRequestWithRetries(WebRequestExecutor ex) {
+    return withRetries(ex, () -> ex.makeRequest(this));
+  }
+
+  /**
+   * Perform an attempt of the request, repeating it as the retry policy allows
+   */
+  private <T> T withRetries(WebRequestExecutor ex, Supplier<T> attempt) {
+    RetryPolicy policy = getRetryPolicy();
+    assertDeadlineNotPassed();
+    if (policy == null)
+      return attempt.get();
+    long startTime = System.currentTimeMillis();
+    for (int attemptNumber = 1;; attemptNumber++) {
+      try {
+        return attempt.get();
+      } catch (RuntimeException e) {
+        long delay = policy.delayBeforeRetry(getVerb(), ex, e, attemptNumber,
+            System.currentTimeMillis() - startTime);
+        if (delay < 0 || delay >= remainingTime())
+          throw e;
+        getManager().metrics().recordRetry(hostKey(), getVerb());
+        DateTimeTools.sleepForRealMs(delay);
+      }
+    }
+  }
+
+  /**
+   * Call the executor to make the request asynchronously; if it fails, and the
+   * retry policy allows it, schedule another attempt after a delay
+   */
+  private CompletableFuture<String> makeRequestAsync(WebRequestExecutor ex, int attempt, long startTime) {
+    Executor blockingExecutor = getManager().asyncExecutor();
+    CompletableFuture<String> future;
+    try {
+      assertDeadlineNotPassed();
+      future = ex.makeRequestAsync(this, blockingExecutor);
+    } catch (Throwable t) {
+      future = CompletableFuture.failedFuture(t);
+    }
+    RetryPolicy policy = getRetryPolicy();
+    if (policy == null)
+      return future;
+    return future.handle((str, throwable) -> {
+      if (throwable == null)
+        return CompletableFuture.completedFuture(str);
+      Throwable cause = unwrapAsyncThrowable(throwable);
+      long delay = policy.delayBeforeRetry(getVerb(), ex, cause, attempt, System.currentTimeMillis() - startTime);
+      if (delay < 0 || delay >= remainingTime())
+        return CompletableFuture.<String>failedFuture(cause);
+      getManager().metrics().recordRetry(hostKey(), getVerb());
+      Executor delayed = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS, blockingExecutor);
+      return CompletableFuture.runAsync(() -> {
+      }, delayed).thenCompose(x -> makeRequestAsync(ex, attempt + 1, startTime));
+    }).thenCompose(Function.identity());
+  }
+
+  /**
+   * Store the result string; it is parsed to a json map only when (and if) the
+   * map is requested
+   */
+  private void storeResult(String fetchedString) {
+    mFetchedString = fetchedString;
+  }
+
+  /**
+   * Parse a result string to a json map. If the string looks like a json map or
+   * list (judging from its first non-whitespace character), it is parsed as
+   * such; a list is stored within a map. Otherwise (or if parsing fails), the
+   * string is stored within a map as text. At most one parse is attempted.
+   * 
+   * If the response's content type is known, and is neither json nor plain
+   * text, no parse is attempted
+   */
+  private static JSMap parseResultMap(String string, WebResponseInfo info) {
+    if (info != null) {
+      String contentType = info.contentType();
+      if (!contentType.isEmpty() && !contentType.contains("json") && !contentType.startsWith("text/plain"))
+        return map().put(WebTools.TEXT, string);
+    }
+    char firstChar = 0;
+    for (int i = 0; i < string.length(); i++) {
+      char c = string.charAt(i);
+      if (!Character.isWhitespace(c)) {
+        firstChar = c;
+        break;
+      }
+    }
+    try {
+      if (firstChar == '{')
+        return new JSMap(string);
+      if (firstChar == '[')
+        return map().put(WebTools.LIST, new JSList(string));
+    } catch (Throwable t) {
+      // Fall through and store as text
+    }
+    return map().put(WebTools.TEXT, string);
+  }
+
+  /**
+   * Record the outcome of the request with the manager's metrics
+   */
+  private void recordMetrics() {
+    long bytesIn = -1;
+    if (mResponseInfo != null)
+      bytesIn = mResponseInfo.contentLength();
+    if (bytesIn < 0)
+      bytesIn = nullToEmpty(mFetchedString).length();
+    getManager().metrics().recordRequest(hostKey(), getVerb(), System.currentTimeMillis() - mSentTime, bytesIn,
+        mThrowable != null);
+  }
+
+  private void storeFailure(Throwable t) {
+    // Store a non-null string so we don't attempt the request again
+    mFetchedString = nullToEmpty(t.getMessage());
+    setThrowable(t);
+  }
+
+  /**
+   * Extract the underlying cause from an exception thrown by a
+   * CompletableFuture stage
+   */
+  private static Throwable unwrapAsyncThrowable(Throwable t) {
+    while ((t instanceof CompletionException || t instanceof ExecutionException) && t.getCause() != null)
+      t = t.getCause();
+    return t;
   }
 
   private WebRequestExecutor getEffectiveExecutor() {
@@ -323,14 +865,24 @@ public final class WebRequest extends BaseObject {
   private void setSent() {
     assertUnsent();
     mSentFlag = true;
-    // If it's a POST, we will send the parameters as an entity (handled by subclass);
-    // otherwise, add parameters to uri
-    if (getVerb() != Verb.POST && getVerb() != Verb.PUT) {
+    mSentTime = System.currentTimeMillis();
+    // Determine the deadline: the earlier of the total timeout (if any), and the
+    // sending thread's deadline (if any)
+    mDeadline = Deadline.current();
+    if (mTotalTimeout > 0) {
+      long deadline = mSentTime + mTotalTimeout;
+      if (mDeadline == 0 || deadline < mDeadline)
+        mDeadline = deadline;
+    }
+    URI uri = mURIBuilder.build();
+    // If it's a POST, we will send the parameters as an entity (handled by subclass),
+    // unless the entity is a post file; otherwise, add parameters to uri
+    if ((getVerb() != Verb.POST && getVerb() != Verb.PUT) || mPostFile != null) {
       // Don't add an empty parameter list; else url with '?'
       if (!readArgs().isEmpty())
-        mURIBuilder.addParameters(readParameters());
+        uri = WebTools.appendQuery(uri, WebTools.encodeForm(readArgs()));
     }
-    mURI = mURIBuilder.build();
+    mURI = uri;
   }
 
   public WebRequest setCredentials(String userName, String password) {
@@ -355,6 +907,42 @@ public final class WebRequest extends BaseObject {
     return request;
   }
 
+  /**
+   * Construct a copy of a sent request, with additional headers, that can be
+   * passed directly to an executor. For executors that need to make a variant
+   * of the request (e.g., a conditional GET)
+   * 
+   * @param extraHeaders
+   *          alternating header names and values
+   */
+  WebRequest sentCopyWithHeaders(List<String> extraHeaders) {
+    assertSent();
+    WebRequest r = build(getManager());
+    r.mURIBuilder = mURIBuilder;
+    r.mTimeout = mTimeout;
+    r.mConnectTimeout = mConnectTimeout;
+    r.mReadTimeout = mReadTimeout;
+    r.mPoolTimeout = mPoolTimeout;
+    r.mTotalTimeout = mTotalTimeout;
+    r.mDeadline = mDeadline;
+    r.mVerb = mVerb;
+    r.mParameterMap = mParameterMap;
+    r.mExecutor = mExecutor;
+    r.mRetryPolicy = mRetryPolicy;
+    r.mUserName = mUserName;
+    r.mPassword = mPassword;
+    r.mUploadFile = mUploadFile;
+    r.mPostFile = mPostFile;
+    r.mUploadProgressListener = mUploadProgressListener;
+    r.mChunkedUpload = mChunkedUpload;
+    r.mJsonRequestType = mJsonRequestType;
+    r.mHeaders.addAll(mHeaders);
+    r.mHeaders.addAll(extraHeaders);
+    r.mURI = mURI;
+    r.mSentFlag = true;
+    return r;
+  }
+
   /**
    * Build a WebRequest, given uri
    */
@@ -380,9 +968,13 @@ public final class WebRequest extends BaseObject {
     map.put("parameters", readArgs());
     if (mResultMap != null)
       map.put("result", mResultMap);
+    if (mResponseInfo != null)
+      map.put("response_info", mResponseInfo.toJson());
     map.put("verb", mVerb.name());
     if (mPostFile != null)
       map.put("post_file", mPostFile.toString());
+    if (mRetryPolicy != null)
+      map.put("retry_policy", mRetryPolicy.toJson());
     return map;
   }
 
@@ -412,24 +1004,36 @@ public final class WebRequest extends BaseObject {
   // These fields are considered immutable once request is sent
   private UriBuilder mURIBuilder = new UriBuilder();
   private int mTimeout = DEFAULT_TIMEOUT;
+  private int mConnectTimeout;
+  private int mReadTimeout;
+  private int mPoolTimeout;
+  private int mTotalTimeout;
   private Verb mVerb = Verb.GET;
   private JSMap mParameterMap = map();
   private WebRequestManager mManager;
   private WebRequestExecutor mExecutor;
+  private RetryPolicy mRetryPolicy;
   private String mUserName;
   private String mPassword;
   private File mUploadFile;
   private File mPostFile;
+  private UploadProgressListener mUploadProgressListener;
+  private boolean mChunkedUpload;
 
   private boolean mSentFlag;
 
   // These fields are only valid once request is sent
 
   private URI mURI;
+  private long mSentTime;
+  private long mDeadline;
   // Issue #680: inserting full package name makes problem go away
   private List<org.apache.http.NameValuePair> mParameterList;
   private Throwable mThrowable;
   private String mFetchedString;
   private JSMap mResultMap;
+  // Completes once the results are available, however the request is performed
+  private volatile CompletableFuture<WebRequest> mAsyncResult;
+  private volatile WebResponseInfo mResponseInfo;
   private List<String> mHeaders = arrayList();
 }
@@ -24,6 +24,15 @@
  **/
 package js.webtools;
 
+import static js.base.Tools.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
 public interface WebRequestExecutor {
 
   /**
@@ -31,6 +40,33 @@ public interface WebRequestExecutor {
    */
   String makeRequest(WebRequest request);
 
+  /**
+   * Execute a request, and pass the response body as a stream to a handler.
+   * The default implementation calls makeRequest() and streams the resulting
+   * string; implementations should override this to avoid holding the body in
+   * memory
+   */
+  default void makeRequest(WebRequest request, ResponseBodyHandler handler) {
+    String result = makeRequest(request);
+    try (InputStream body = new ByteArrayInputStream(result.getBytes(StandardCharsets.UTF_8))) {
+      handler.handle(body);
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  /**
+   * Execute a request asynchronously. The default implementation calls
+   * makeRequest() on a thread supplied by an executor; implementations with a
+   * non-blocking transport should override this
+   * 
+   * @param blockingExecutor
+   *          executor to run any blocking work on
+   */
+  default CompletableFuture<String> makeRequestAsync(WebRequest request, Executor blockingExecutor) {
+    return CompletableFuture.supplyAsync(() -> makeRequest(request), blockingExecutor);
+  }
+
   /**
    * Determine if a WebRequest can be retried after a particular throwable
    * received in the previous attempt
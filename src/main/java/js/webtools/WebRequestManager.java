@@ -26,7 +26,21 @@ package js.webtools;
 
 import static js.base.Tools.*;
 
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import js.json.JSMap;
 
 public abstract class WebRequestManager implements WebRequestExecutor {
 
@@ -38,19 +52,19 @@ public abstract class WebRequestManager implements WebRequestExecutor {
    * 
    * For test purposes only
    */
-  public final void installFilter(RequestFilter filter) {
+  public final synchronized void installFilter(RequestFilter filter) {
     mRequestFilters.add(filter);
+    // Rebuild the index, and publish it for lookups (which don't need to lock)
+    mFilterIndex = new RequestFilterIndex(mRequestFilters);
   }
 
   public final WebRequestExecutor getPossiblyFilteredRequestExecutor(WebRequest request) {
     WebRequestExecutor executor = null;
-    if (!mRequestFilters.isEmpty()) {
-      for (RequestFilter f : mRequestFilters) {
-        if (f.matches(request.uri())) {
-          executor = f.executor;
-          break;
-        }
-      }
+    RequestFilterIndex index = mFilterIndex;
+    if (index != null) {
+      RequestFilter f = index.find(request.uri());
+      if (f != null)
+        executor = f.executor;
     }
     if (executor == null) {
       if (mUnfilteredDisabled) {
@@ -67,7 +81,290 @@ public abstract class WebRequestManager implements WebRequestExecutor {
     return !mRequestFilters.isEmpty();
   }
 
-  private List<RequestFilter> mRequestFilters = arrayList();
+  /**
+   * Set the retry policy for requests that don't specify their own; null if
+   * such requests are not to be retried
+   */
+  public final void setDefaultRetryPolicy(RetryPolicy retryPolicy) {
+    mDefaultRetryPolicy = retryPolicy;
+  }
+
+  public final RetryPolicy getDefaultRetryPolicy() {
+    return mDefaultRetryPolicy;
+  }
+
+  // ------------------------------------------------------------------
+  // Metrics
+  // ------------------------------------------------------------------
+
+  /**
+   * Get the metrics for requests made through this manager
+   */
+  public final RequestMetrics metrics() {
+    return mMetrics;
+  }
+
+  /**
+   * Construct a json map summarizing the metrics for requests made through
+   * this manager. Subclasses may add transport-specific information
+   */
+  public JSMap metricsSnapshot() {
+    return metrics().snapshot();
+  }
+
+  // ------------------------------------------------------------------
+  // Single-flight requests
+  // ------------------------------------------------------------------
+
+  /**
+   * Enable or disable single-flight mode. If enabled, identical GET requests
+   * (same uri, headers, and credentials) that are in flight at the same time
+   * share a single execution, and all receive its result
+   */
+  public final void setSingleFlight(boolean flag) {
+    mSingleFlight = flag;
+  }
+
+  public final boolean singleFlight() {
+    return mSingleFlight;
+  }
+
+  /**
+   * If an operation with a particular key is in flight, return its future;
+   * otherwise, start the operation
+   */
+  @SuppressWarnings("unchecked")
+  final <T> CompletableFuture<T> shareInFlight(Object key, Supplier<CompletableFuture<T>> operation) {
+    CompletableFuture<T> shared = new CompletableFuture<>();
+    CompletableFuture<T> existing = (CompletableFuture<T>) mInFlight.putIfAbsent(key, shared);
+    if (existing != null)
+      return existing;
+    CompletableFuture<T> result;
+    try {
+      result = operation.get();
+    } catch (Throwable t) {
+      result = CompletableFuture.failedFuture(t);
+    }
+    result.whenComplete((value, throwable) -> {
+      // Remove the entry before completing, so later requests start a new operation
+      mInFlight.remove(key, shared);
+      if (throwable != null)
+        shared.completeExceptionally(throwable);
+      else
+        shared.complete(value);
+    });
+    return shared;
+  }
+
+  // ------------------------------------------------------------------
+  // Asynchronous requests
+  // ------------------------------------------------------------------
+
+  /**
+   * Set the executor used to run blocking work for asynchronous requests. If
+   * none is set, a pool of daemon threads is constructed on demand
+   */
+  public final synchronized void setAsyncExecutor(Executor executor) {
+    checkState(mAsyncExecutor == null, "async executor already defined");
+    mAsyncExecutor = checkNotNull(executor);
+  }
+
+  /**
+   * Run blocking work for asynchronous requests on virtual threads, one per
+   * request, if the JVM supports them (JDK 21 or later); otherwise, leave the
+   * default pool in place
+   * 
+   * @return true if virtual threads will be used
+   */
+  public final synchronized boolean useVirtualThreads() {
+    ExecutorService service = virtualThreadExecutor();
+    if (service == null) {
+      pr("*** virtual threads not supported; using platform thread pool");
+      return false;
+    }
+    setAsyncExecutor(service);
+    return true;
+  }
+
+  /**
+   * Construct an executor that starts a new virtual thread for each task; or
+   * null if the JVM doesn't support virtual threads.
+   * 
+   * The project targets Java 11, so the JDK 21 factory method is located via
+   * reflection
+   */
+  public static ExecutorService virtualThreadExecutor() {
+    Method factory;
+    try {
+      factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException e) {
+      return null;
+    }
+    try {
+      return (ExecutorService) factory.invoke(null);
+    } catch (ReflectiveOperationException e) {
+      throw asRuntimeException(e);
+    }
+  }
+
+  /**
+   * Get the executor used to run blocking work for asynchronous requests
+   */
+  public final synchronized Executor asyncExecutor() {
+    if (mAsyncExecutor == null) {
+      ExecutorService service = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "WebRequest async");
+        thread.setDaemon(true);
+        return thread;
+      });
+      mAsyncExecutor = service;
+    }
+    return mAsyncExecutor;
+  }
+
+  // ------------------------------------------------------------------
+  // Batch requests
+  // ------------------------------------------------------------------
+
+  /**
+   * Send a number of (unsent) requests in parallel, and wait for them all to
+   * complete. At most maxConcurrency requests will be in flight at once, in
+   * total and to any single host
+   * 
+   * @return the requests, in their original order, with their results
+   *         available
+   */
+  public final List<WebRequest> executeAll(List<WebRequest> requests, int maxConcurrency) {
+    return executeAll(requests, maxConcurrency, maxConcurrency);
+  }
+
+  /**
+   * Send a number of (unsent) requests in parallel, and wait for them all to
+   * complete. Each request inherits the calling thread's deadline (if any),
+   * even if it is sent from a different thread
+   * 
+   * @param maxConcurrency
+   *          maximum number of requests in flight at once, across all hosts
+   *          (this bounds the number of threads blocked on the batch)
+   * @param maxPerHost
+   *          maximum number of requests in flight at once to any single host
+   *          (and port)
+   * @return the requests, in their original order, with their results
+   *         available
+   */
+  public final List<WebRequest> executeAll(List<WebRequest> requests, int maxConcurrency, int maxPerHost) {
+    checkArgument(maxConcurrency > 0, "bad max concurrency:", maxConcurrency);
+    checkArgument(maxPerHost > 0, "bad max per host:", maxPerHost);
+    Batch batch = new Batch(requests, maxConcurrency, maxPerHost);
+    batch.sendAvailable();
+    try {
+      batch.mRemaining.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw asRuntimeException(e);
+    }
+    return new ArrayList<>(requests);
+  }
+
+  /**
+   * Schedules the requests of a batch, keeping a queue of pending requests for
+   * each host, and sending them round-robin as the concurrency limits allow
+   */
+  private final class Batch {
+
+    Batch(List<WebRequest> requests, int maxConcurrency, int maxPerHost) {
+      mDeadline = Deadline.current();
+      mMaxConcurrency = maxConcurrency;
+      mMaxPerHost = maxPerHost;
+      Map<String, HostQueue> hostQueues = hashMap();
+      for (WebRequest r : requests)
+        hostQueues.computeIfAbsent(r.hostKey(), k -> new HostQueue()).mPending.add(r);
+      mHosts = new ArrayList<>(hostQueues.values());
+      mRemaining = new CountDownLatch(requests.size());
+    }
+
+    /**
+     * Send as many pending requests as the limits allow
+     */
+    void sendAvailable() {
+      while (true) {
+        HostQueue host;
+        WebRequest request;
+        synchronized (this) {
+          host = nextHost();
+          if (host == null)
+            return;
+          request = host.mPending.poll();
+          host.mActive++;
+          mInFlight++;
+        }
+        send(host, request);
+      }
+    }
+
+    private void send(HostQueue host, WebRequest request) {
+      CompletableFuture<WebRequest> future;
+      // Requests after the first few are sent from pool threads, which don't have
+      // the caller's deadline
+      Deadline.Scope scope = Deadline.enter(mDeadline);
+      try {
+        future = request.sendAsync();
+      } catch (Throwable t) {
+        future = CompletableFuture.failedFuture(t);
+      } finally {
+        scope.close();
+      }
+      // Continue on a pool thread, so a run of requests that complete immediately
+      // doesn't build up the call stack
+      future.whenCompleteAsync((r, t) -> {
+        synchronized (this) {
+          host.mActive--;
+          mInFlight--;
+        }
+        mRemaining.countDown();
+        sendAvailable();
+      }, asyncExecutor());
+    }
+
+    /**
+     * Choose the next host (after the previous one) with a pending request that
+     * can be sent, or null if there is none
+     */
+    private HostQueue nextHost() {
+      if (mInFlight >= mMaxConcurrency)
+        return null;
+      int count = mHosts.size();
+      for (int i = 0; i < count; i++) {
+        HostQueue host = mHosts.get((mCursor + i) % count);
+        if (!host.mPending.isEmpty() && host.mActive < mMaxPerHost) {
+          mCursor = (mCursor + i + 1) % count;
+          return host;
+        }
+      }
+      return null;
+    }
+
+    private final long mDeadline;
+    private final int mMaxConcurrency;
+    private final int mMaxPerHost;
+    private final List<HostQueue> mHosts;
+    private final CountDownLatch mRemaining;
+    private int mInFlight;
+    private int mCursor;
+  }
+
+  private static final class HostQueue {
+    final Queue<WebRequest> mPending = new ArrayDeque<>();
+    int mActive;
+  }
+
+  private final List<RequestFilter> mRequestFilters = new CopyOnWriteArrayList<>();
+  private volatile RequestFilterIndex mFilterIndex;
+  private Executor mAsyncExecutor;
+  private volatile RetryPolicy mDefaultRetryPolicy;
+  private volatile boolean mSingleFlight;
+  private final Map<Object, CompletableFuture<?>> mInFlight = concurrentHashMap();
+  private final RequestMetrics mMetrics = new RequestMetrics();
   private boolean mUnfilteredDisabled;
 
 }
@@ -26,17 +26,28 @@ package js.webtools;
 
 import static js.base.Tools.*;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 import com.sun.net.httpserver.HttpExchange;
 
 import js.base.BaseObject;
 import js.base.BasePrinter;
 import js.data.DataUtil;
-import js.file.Files;
 import js.json.JSList;
 import js.json.JSMap;
 import js.json.JSUtils;
@@ -63,38 +74,14 @@ public final class WebResponse extends BaseObject {
    * Build a WebResponse from an HttpExchange
    */
   public static WebResponse build(HttpExchange httpExchange) {
-    JSMap jsonMap = map();
-    String query = httpExchange.getRequestURI().getQuery();
-    if (query != null) {
-      for (String param : query.split("&")) {
-        String[] entry = param.split("=");
-        String key = entry[0];
-        String value = "";
-        if (entry.length > 1)
-          value = entry[1];
-
-        // Parse key/value pairs, and parse the values as json entities if possible.
-        // If there are multiple values for a key, store them as a json list
-        //
-        Object parsedValue = parseValueAsJson(value);
-        if (jsonMap.containsKey(key)) {
-          Object currentValue = jsonMap.optUnsafe(key);
-          JSList valueList = null;
-          if (currentValue instanceof JSList)
-            valueList = (JSList) currentValue;
-          else {
-            // Promote the existing scalar value to a JSList
-            valueList = list();
-            valueList.addUnsafe(currentValue);
-            jsonMap.put(key, valueList);
-          }
-          valueList.addUnsafe(parsedValue);
-        } else
-          jsonMap.putUnsafe(key, parsedValue);
-      }
-    }
+    // Decode the query string now, but don't interpret its values as json until they are
+    // read (via inputArgs())
+    String query = httpExchange.getRequestURI().getRawQuery();
+    JSMap jsonMap = (query == null) ? map() : WebTools.parseForm(query);
     WebResponse response = WebResponse.build(Verb.valueOf(httpExchange.getRequestMethod()), jsonMap);
     response.mExchange = httpExchange;
+    response.mInputArgsUninterpreted = true;
+    response.parseDeadline(httpExchange.getRequestHeaders().getFirst(Deadline.HEADER_TIME_REMAINING));
     return response;
   }
 
@@ -182,9 +169,43 @@ public final class WebResponse extends BaseObject {
   // ------------------------------------------------------------------
 
   public JSMap inputArgs() {
+    if (!mRequestBodyParsed) {
+      mRequestBodyParsed = true;
+      parseRequestBody();
+    }
+    if (mInputArgsUninterpreted) {
+      mInputArgsUninterpreted = false;
+      interpretValuesAsJson(mInputArgs);
+    }
+    if (mJsonBody != null) {
+      for (String key : mJsonBody.keySet())
+        mInputArgs.putUnsafe(key, mJsonBody.getUnsafe(key));
+      mJsonBody = null;
+    }
     return mInputArgs;
   }
 
+  /**
+   * Replace string values (including those within lists) with the json values
+   * they represent, if any
+   */
+  private static void interpretValuesAsJson(JSMap map) {
+    for (String key : map.keySet()) {
+      Object value = map.getUnsafe(key);
+      if (value instanceof String)
+        map.putUnsafe(key, parseValueAsJson((String) value));
+      else if (value instanceof JSList) {
+        JSList values = (JSList) value;
+        JSList parsedValues = list();
+        for (int i = 0; i < values.size(); i++) {
+          Object element = values.getUnsafe(i);
+          parsedValues.addUnsafe(element instanceof String ? parseValueAsJson((String) element) : element);
+        }
+        map.put(key, parsedValues);
+      }
+    }
+  }
+
   public JSMap outputArgs() {
     return mOutputArgs;
   }
@@ -260,12 +281,85 @@ public final class WebResponse extends BaseObject {
   // Request body
   // ------------------------------------------------------------------
 
+  /**
+   * Keys for the maps describing files uploaded in multipart request bodies
+   */
+  public static final String UPLOAD_FILENAME = "filename";
+  public static final String UPLOAD_FILE = "file";
+  public static final String UPLOAD_CONTENT_TYPE = "content_type";
+  public static final String UPLOAD_SIZE = "size";
+
+  /**
+   * Set the maximum size of a request body that is read into memory (this
+   * includes the text fields of a multipart body)
+   */
+  public WebResponse setMaxBodySize(long maxBytes) {
+    checkArgument(maxBytes >= 0);
+    mMaxBodySize = maxBytes;
+    return this;
+  }
+
+  /**
+   * Set the maximum size of each file uploaded in a multipart request body
+   */
+  public WebResponse setMaxUploadFileSize(long maxBytes) {
+    checkArgument(maxBytes >= 0);
+    mMaxUploadFileSize = maxBytes;
+    return this;
+  }
+
+  /**
+   * Set the maximum total size of the files uploaded in a multipart request
+   * body
+   */
+  public WebResponse setMaxUploadTotalSize(long maxBytes) {
+    checkArgument(maxBytes >= 0);
+    mMaxUploadTotalSize = maxBytes;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of parts (text fields and files) in a multipart
+   * request body
+   */
+  public WebResponse setMaxMultipartParts(int maxParts) {
+    checkArgument(maxParts > 0);
+    mMaxMultipartParts = maxParts;
+    return this;
+  }
+
+  /**
+   * Set the directory that files uploaded in multipart request bodies are
+   * written to (by default, the system's temporary directory)
+   */
+  public WebResponse setUploadDirectory(File directory) {
+    mUploadDirectory = directory;
+    return this;
+  }
+
+  /**
+   * Delete any files that were uploaded in a multipart request body. A servlet
+   * that wants to keep an uploaded file should move it elsewhere
+   */
+  public void deleteUploadedFiles() {
+    for (File file : mUploadedFiles)
+      if (file.exists() && !file.delete())
+        alert("failed to delete uploaded file:", file);
+    mUploadedFiles.clear();
+  }
+
   /**
    * Get body of request as an array of bytes
    */
   public byte[] readBytesFromRequestBody() {
     if (mRequestBody == null) {
-      setRequestBody(Files.toByteArray(openRequestBodyInputStream(), "readBytesFromRequestBody"));
+      checkState(!mRequestBodyStreamed, "request body has already been read");
+      mRequestBodyStreamed = true;
+      try (InputStream input = openRequestBodyInputStream()) {
+        setRequestBody(readLimited(input, mMaxBodySize));
+      } catch (IOException e) {
+        throw asRuntimeException(e);
+      }
     }
     return mRequestBody;
   }
@@ -280,12 +374,127 @@ public final class WebResponse extends BaseObject {
   }
 
   /**
-   * Subclasses should override this to read bytes from the http request body
+   * Open a stream to read the http request body
    */
   protected InputStream openRequestBodyInputStream() {
+    if (mExchange != null)
+      return mExchange.getRequestBody();
+    if (mRequestBody != null)
+      return new ByteArrayInputStream(mRequestBody);
     throw new UnsupportedOperationException();
   }
 
+  /**
+   * Read the request body if it contains arguments (i.e., it is a form, json,
+   * or multipart body), and store them in the input arguments. Fields of a
+   * form or multipart body are added to those from the query string; keys of a
+   * json map replace them
+   */
+  private void parseRequestBody() {
+    if (mExchange == null || (mVerb != Verb.POST && mVerb != Verb.PUT))
+      return;
+    String contentTypeHeader = nullToEmpty(requestHeader("Content-Type"));
+    int semicolon = contentTypeHeader.indexOf(';');
+    String contentType = (semicolon < 0 ? contentTypeHeader : contentTypeHeader.substring(0, semicolon)).trim()
+        .toLowerCase();
+
+    switch (contentType) {
+    case "application/x-www-form-urlencoded": {
+      checkContentLength(mMaxBodySize);
+      JSMap fields = WebTools.parseForm(new String(readBytesFromRequestBody(), StandardCharsets.UTF_8));
+      for (String key : fields.keySet())
+        WebTools.putOrAppend(mInputArgs, key, fields.getUnsafe(key));
+    }
+      break;
+
+    case "application/json": {
+      checkContentLength(mMaxBodySize);
+      String text = new String(readBytesFromRequestBody(), StandardCharsets.UTF_8).trim();
+      if (text.isEmpty())
+        break;
+      Object value;
+      try {
+        value = JSUtils.parse(text);
+      } catch (IllegalArgumentException e) {
+        throw badArg("malformed json in request body:", e.getMessage());
+      }
+      if (value instanceof JSMap)
+        mJsonBody = (JSMap) value;
+      else if (value instanceof JSList)
+        mJsonBody = map().put(WebTools.LIST, value);
+      else
+        mJsonBody = map().put(WebTools.TEXT, value.toString());
+    }
+      break;
+
+    case "multipart/form-data": {
+      String boundary = MultipartParser.parseHeaderParameters(contentTypeHeader).get("boundary");
+      checkState(!mRequestBodyStreamed, "request body has already been read");
+      checkContentLength(saturatedAdd(mMaxBodySize, mMaxUploadTotalSize));
+      mRequestBodyStreamed = true;
+      try (InputStream input = openRequestBodyInputStream()) {
+        new MultipartParser(input, boundary) //
+            .withUploadDirectory(mUploadDirectory) //
+            .withMaxFileSize(mMaxUploadFileSize) //
+            .withMaxTotalFileSize(mMaxUploadTotalSize) //
+            .withMaxParts(mMaxMultipartParts) //
+            .withMaxFieldBytes(mMaxBodySize) //
+            .parse(mInputArgs, mUploadedFiles);
+      } catch (IOException e) {
+        throw asRuntimeException(e);
+      }
+    }
+      break;
+
+    default:
+      // Leave the body (if any) to be read by the servlet
+      break;
+    }
+  }
+
+  /**
+   * Reject a request whose declared body length exceeds a limit, before any of
+   * it is read
+   */
+  private void checkContentLength(long maxBytes) {
+    String contentLength = requestHeader("Content-Length");
+    if (contentLength == null)
+      return;
+    try {
+      if (Long.parseLong(contentLength.trim()) > maxBytes)
+        throw tooLarge(maxBytes);
+    } catch (NumberFormatException e) {
+      throw badArg("malformed Content-Length:", contentLength);
+    }
+  }
+
+  private static long saturatedAdd(long a, long b) {
+    long sum = a + b;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+
+  /**
+   * Read all the bytes from a stream, failing if there are more than a limit
+   */
+  private static byte[] readLimited(InputStream input, long maxBytes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    while (true) {
+      int count = input.read(buffer);
+      if (count < 0)
+        break;
+      if (out.size() + (long) count > maxBytes)
+        throw tooLarge(maxBytes);
+      out.write(buffer, 0, count);
+    }
+    return out.toByteArray();
+  }
+
+  private static HttpStatusException tooLarge(long maxBytes) {
+    return new HttpStatusException(WebTools.SC_PAYLOAD_TOO_LARGE,
+        "request body exceeds limit of " + maxBytes + " bytes");
+  }
+
   // ------------------------------------------------------------------
   // Generating response
   // ------------------------------------------------------------------
@@ -303,13 +512,143 @@ public final class WebResponse extends BaseObject {
    * Set response to a particular content type and byte array
    */
   public WebResponse setOutput(String contentType, byte[] bytes) {
-    checkState(mResponseBytes == null, "response already set");
-    checkNotNull(contentType, "missing content type");
-    mContentType = contentType;
+    prepareOutput(contentType);
     mResponseBytes = bytes;
     return this;
   }
 
+  /**
+   * Set response to a particular content type, with a body that is written to
+   * the client as it is generated (using chunked transfer encoding), rather
+   * than being held in memory
+   */
+  public WebResponse setOutput(String contentType, ResponseBodyWriter writer) {
+    prepareOutput(contentType);
+    mResponseWriter = checkNotNull(writer);
+    return this;
+  }
+
+  /**
+   * Set response to the contents of a file, which are transferred from a
+   * FileChannel rather than being read into memory. The content type is
+   * inferred from the file's extension
+   */
+  public WebResponse setOutput(File file) {
+    String contentType = WebTools.determineContentType(file.getName());
+    if (contentType.isEmpty())
+      contentType = "application/octet-stream";
+    return setOutput(contentType, file);
+  }
+
+  /**
+   * Set response to the contents of a file, which are transferred from a
+   * FileChannel rather than being read into memory
+   */
+  public WebResponse setOutput(String contentType, File file) {
+    return setOutput(contentType, file, 0, -1);
+  }
+
+  /**
+   * Set response to a range of bytes from a file, which are transferred from a
+   * FileChannel rather than being read into memory
+   * 
+   * @param length
+   *          number of bytes, or -1 for the remainder of the file
+   */
+  public WebResponse setOutput(String contentType, File file, long offset, long length) {
+    checkArgument(file.isFile(), "no such file:", file);
+    checkArgument(offset >= 0 && length >= -1, "bad range:", offset, length);
+    prepareOutput(contentType);
+    mResponseFile = file;
+    mResponseFileOffset = offset;
+    mResponseFileLength = length;
+    return this;
+  }
+
+  /**
+   * Set response to json, which is written to the client (as UTF-8) as it is
+   * generated
+   */
+  public WebResponse setOutputJson(JsonBodyWriter writer) {
+    checkNotNull(writer);
+    return setOutput("application/json", out -> {
+      Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 8192);
+      writer.write(w);
+      w.flush();
+    });
+  }
+
+  /**
+   * Set response to a json map, which is written to the client without first
+   * being converted to a byte array
+   */
+  public WebResponse setOutputJson(JSMap map) {
+    checkNotNull(map);
+    return setOutputJson(w -> w.write(map.toString()));
+  }
+
+  /**
+   * Writes a json response body as characters
+   */
+  @FunctionalInterface
+  public interface JsonBodyWriter {
+    void write(Writer writer) throws IOException;
+  }
+
+  /**
+   * Set the http status code of the response
+   */
+  public WebResponse setStatusCode(int statusCode) {
+    outputArgs().put(WebTools.HTTP_RESPONSE_STATUS_CODE, statusCode);
+    return this;
+  }
+
+  /**
+   * Get the value of a request header, or null if it is missing
+   */
+  public String requestHeader(String name) {
+    if (mExchange == null)
+      return null;
+    return mExchange.getRequestHeaders().getFirst(name);
+  }
+
+  /**
+   * Set a header to be included in the response
+   */
+  public WebResponse setResponseHeader(String name, String value) {
+    checkNotNull(value, "missing value for header:", name);
+    for (int i = 0; i < mResponseHeaders.size(); i += 2) {
+      if (mResponseHeaders.get(i).equalsIgnoreCase(name)) {
+        mResponseHeaders.set(i + 1, value);
+        return this;
+      }
+    }
+    mResponseHeaders.add(name);
+    mResponseHeaders.add(value);
+    return this;
+  }
+
+  private void prepareOutput(String contentType) {
+    checkState(!hasOutput(), "response already set");
+    checkNotNull(contentType, "missing content type");
+    mContentType = contentType;
+  }
+
+  /**
+   * Determine if a response has been set
+   */
+  boolean hasOutput() {
+    return mResponseBytes != null || mResponseMap != null || mResponseWriter != null || mResponseFile != null;
+  }
+
+  private void clearOutput() {
+    mResponseBytes = null;
+    mResponseMap = null;
+    mResponseWriter = null;
+    mResponseFile = null;
+    mOutputMarkup = null;
+  }
+
   /**
    * Public for test purposes
    * 
@@ -319,12 +658,64 @@ public final class WebResponse extends BaseObject {
     return mOutputMarkup;
   }
 
+  // ------------------------------------------------------------------
+  // Deadlines
+  // ------------------------------------------------------------------
+
+  /**
+   * Get the deadline (in system milliseconds) for servicing this request, or
+   * zero if it has none. This is initially derived from the caller's time
+   * remaining, if it was provided in the request headers
+   */
+  public long deadline() {
+    return mDeadline;
+  }
+
+  /**
+   * Limit the time allowed for servicing this request; if the caller's deadline
+   * is earlier, that one remains in effect
+   */
+  public WebResponse setTimeBudget(long budgetMs) {
+    checkArgument(budgetMs > 0);
+    long deadline = System.currentTimeMillis() + budgetMs;
+    if (mDeadline == 0 || deadline < mDeadline)
+      mDeadline = deadline;
+    return this;
+  }
+
+  /**
+   * Make this request's deadline (if any) the current thread's deadline, so
+   * that any WebRequests sent while servicing it are bounded by it. Close the
+   * returned scope when the request has been serviced
+   */
+  public Deadline.Scope enterDeadlineScope() {
+    return Deadline.enter(mDeadline);
+  }
+
+  private void parseDeadline(String timeRemaining) {
+    if (timeRemaining == null)
+      return;
+    try {
+      long remainingMs = Long.parseLong(timeRemaining.trim());
+      if (remainingMs >= 0)
+        mDeadline = System.currentTimeMillis() + remainingMs;
+    } catch (NumberFormatException e) {
+      alert("ignoring malformed header:", Deadline.HEADER_TIME_REMAINING, timeRemaining);
+    }
+  }
+
+  // ------------------------------------------------------------------
+  // Writing response
+  // ------------------------------------------------------------------
+
   /**
    * Write the response to an appropriate OutputStream for the HttpExchange
    */
   public WebResponse writeResponse() {
 
     if (hasError()) {
+      // An error replaces any output that was set
+      clearOutput();
       String errorMessage = outputArgs().prettyPrint();
       setOutputHTML("<pre>\n" + errorMessage + "</pre>");
     }
@@ -334,21 +725,166 @@ public final class WebResponse extends BaseObject {
       if (mResponseMap != null)
         mResponseBytes = DataUtil.toByteArray(mResponseMap.prettyPrint());
     }
-    checkState(mResponseBytes != null, "no responseBytes defined");
+    checkState(hasOutput(), "no response defined");
 
     try {
       mExchange.getResponseHeaders().set("Content-Type", mContentType);
+      for (int i = 0; i < mResponseHeaders.size(); i += 2)
+        mExchange.getResponseHeaders().set(mResponseHeaders.get(i), mResponseHeaders.get(i + 1));
       int responseCode = mOutputArgs.opt(WebTools.HTTP_RESPONSE_STATUS_CODE, WebTools.SC_OK);
-      mExchange.sendResponseHeaders(responseCode, mResponseBytes.length);
-      OutputStream os = mExchange.getResponseBody();
-      os.write(mResponseBytes);
-      os.close();
+      if (mResponseWriter != null)
+        writeStreamedResponse(responseCode, mResponseWriter);
+      else if (mResponseFile != null)
+        writeFileResponse(responseCode, mResponseFile, mResponseFileOffset, mResponseFileLength);
+      else {
+        byte[] bytes = mResponseBytes;
+        if (shouldCompress(bytes.length)) {
+          bytes = gzip(bytes);
+          setCompressionHeaders();
+        }
+        // A length of zero would indicate chunked transfer encoding; -1 indicates no body
+        mExchange.sendResponseHeaders(responseCode, bytes.length == 0 ? -1 : bytes.length);
+        OutputStream os = mExchange.getResponseBody();
+        os.write(bytes);
+        os.close();
+      }
     } catch (IOException e) {
       throw asRuntimeException(e);
     }
     return this;
   }
 
+  private void writeStreamedResponse(int responseCode, ResponseBodyWriter writer) throws IOException {
+    boolean compress = shouldCompress(Integer.MAX_VALUE);
+    if (compress)
+      setCompressionHeaders();
+    // A length of zero indicates chunked transfer encoding
+    mExchange.sendResponseHeaders(responseCode, 0);
+    OutputStream os = mExchange.getResponseBody();
+    try {
+      if (compress)
+        os = new GZIPOutputStream(os, 8192);
+      writer.write(os);
+    } finally {
+      os.close();
+    }
+  }
+
+  private void writeFileResponse(int responseCode, File file, long offset, long length) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long size = channel.size();
+      checkState(offset <= size, "offset beyond end of file:", offset, file);
+      long count = (length < 0) ? size - offset : Math.min(length, size - offset);
+      if (count <= Integer.MAX_VALUE && shouldCompress((int) count)) {
+        writeStreamedResponse(responseCode, out -> transfer(channel, offset, count, out));
+        return;
+      }
+      mExchange.sendResponseHeaders(responseCode, count == 0 ? -1 : count);
+      try (OutputStream os = mExchange.getResponseBody()) {
+        transfer(channel, offset, count, os);
+      }
+    }
+  }
+
+  /**
+   * Transfer a range of bytes from a FileChannel to an OutputStream
+   */
+  static void transfer(FileChannel channel, long position, long count, OutputStream out) throws IOException {
+    WritableByteChannel target = Channels.newChannel(out);
+    long end = position + count;
+    while (position < end) {
+      long transferred = channel.transferTo(position, end - position, target);
+      if (transferred <= 0)
+        throw new IOException("file truncated while sending");
+      position += transferred;
+    }
+  }
+
+  // ------------------------------------------------------------------
+  // Compression
+  // ------------------------------------------------------------------
+
+  /**
+   * Enable or disable gzip compression of the response. If enabled (the
+   * default), responses of a compressible content type that are at least
+   * COMPRESSION_THRESHOLD bytes long are compressed, if the client accepts gzip
+   * encoding
+   */
+  public WebResponse setCompression(boolean enabled) {
+    mCompressionDisabled = !enabled;
+    return this;
+  }
+
+  /**
+   * Responses shorter than this aren't worth compressing
+   */
+  public static final int COMPRESSION_THRESHOLD = 1024;
+
+  private boolean shouldCompress(int length) {
+    if (mCompressionDisabled || length < COMPRESSION_THRESHOLD)
+      return false;
+    if (!isCompressible(nullToEmpty(mContentType)))
+      return false;
+    return acceptsGzip(mExchange.getRequestHeaders().getFirst("Accept-Encoding"));
+  }
+
+  /**
+   * Determine if a content type is worth compressing (i.e., it is not an
+   * already-compressed format such as png or jpeg)
+   */
+  static boolean isCompressible(String contentType) {
+    return contentType.startsWith("text/") || contentType.contains("json") || contentType.contains("javascript")
+        || contentType.contains("xml");
+  }
+
+  /**
+   * Determine if an Accept-Encoding header value includes gzip (with a nonzero
+   * quality value). An explicit gzip item takes precedence over a '*' item
+   */
+  static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null)
+      return false;
+    double gzipQuality = -1;
+    double anyQuality = -1;
+    for (String item : split(acceptEncoding, ',')) {
+      List<String> parts = split(item, ';');
+      String coding = parts.get(0).trim().toLowerCase();
+      if (!coding.equals("gzip") && !coding.equals("*"))
+        continue;
+      double quality = 1;
+      for (int i = 1; i < parts.size(); i++) {
+        String param = parts.get(i).trim();
+        if (param.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(param.substring(2));
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (coding.equals("gzip"))
+        gzipQuality = quality;
+      else
+        anyQuality = quality;
+    }
+    if (gzipQuality >= 0)
+      return gzipQuality > 0;
+    return anyQuality > 0;
+  }
+
+  private void setCompressionHeaders() {
+    mExchange.getResponseHeaders().set("Content-Encoding", "gzip");
+    mExchange.getResponseHeaders().add("Vary", "Accept-Encoding");
+  }
+
+  static byte[] gzip(byte[] bytes) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4);
+    try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+      gz.write(bytes);
+    }
+    return out.toByteArray();
+  }
+
   /**
    * Parse a string, if possible, as a json value. If that fails, return the
    * original string.
@@ -358,6 +894,8 @@ public final class WebResponse extends BaseObject {
   private static Object parseValueAsJson(String value) {
     if (value.isEmpty() || value.equals("null"))
       return "";
+    if (!mightBeJson(value))
+      return value;
     try {
       return JSUtils.parse(value);
     } catch (IllegalArgumentException e) {
@@ -365,9 +903,45 @@ public final class WebResponse extends BaseObject {
     }
   }
 
+  /**
+   * Determine if a string might be a json value, to avoid attempting (and
+   * failing) to parse most strings that aren't
+   */
+  private static boolean mightBeJson(String value) {
+    char c = value.charAt(0);
+    switch (c) {
+    case '{':
+    case '[':
+    case '"':
+    case '-':
+      return true;
+    case 't':
+      return value.equals("true");
+    case 'f':
+      return value.equals("false");
+    default:
+      return c >= '0' && c <= '9';
+    }
+  }
+
+  private static final long DEFAULT_MAX_BODY_SIZE = 10 * 1024 * 1024;
+  private static final long DEFAULT_MAX_UPLOAD_FILE_SIZE = 1024L * 1024 * 1024;
+  private static final long DEFAULT_MAX_UPLOAD_TOTAL_SIZE = 1024L * 1024 * 1024;
+  private static final int DEFAULT_MAX_MULTIPART_PARTS = 100;
+
   private String mContentType;
   private String mOutputMarkup;
   private JSMap mInputArgs;
+  private boolean mInputArgsUninterpreted;
+  private boolean mRequestBodyParsed;
+  private boolean mRequestBodyStreamed;
+  private JSMap mJsonBody;
+  private long mMaxBodySize = DEFAULT_MAX_BODY_SIZE;
+  private long mMaxUploadFileSize = DEFAULT_MAX_UPLOAD_FILE_SIZE;
+  private long mMaxUploadTotalSize = DEFAULT_MAX_UPLOAD_TOTAL_SIZE;
+  private int mMaxMultipartParts = DEFAULT_MAX_MULTIPART_PARTS;
+  private File mUploadDirectory;
+  private final List<File> mUploadedFiles = arrayList();
   private JSMap mOutputArgs = new JSMap();
   private Verb mVerb;
   private List<String> mPathElements;
@@ -376,5 +950,12 @@ public final class WebResponse extends BaseObject {
   private HttpExchange mExchange;
   private byte[] mResponseBytes;
   private JSMap mResponseMap;
+  private ResponseBodyWriter mResponseWriter;
+  private File mResponseFile;
+  private long mResponseFileOffset;
+  private long mResponseFileLength;
+  private List<String> mResponseHeaders = arrayList();
+  private boolean mCompressionDisabled;
+  private long mDeadline;
 
 }
@@ -0,0 +1,158 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.util.List;
+
+import js.base.BaseObject;
+import js.json.JSList;
+import js.json.JSMap;
+
+/**
+ * Information about the http response to a WebRequest, other than its body:
+ * the status code, headers, content length, and timing
+ */
+public final class WebResponseInfo extends BaseObject {
+
+  /**
+   * @param headers
+   *          response headers, as a list of alternating names and values
+   * @param contentLength
+   *          length of content, or -1 if unknown
+   * @param elapsedMs
+   *          time taken to perform the request
+   */
+  public WebResponseInfo(int statusCode, List<String> headers, long contentLength, long elapsedMs) {
+    checkArgument(headers.size() % 2 == 0, "headers must be name/value pairs");
+    mStatusCode = statusCode;
+    mHeaders = headers;
+    mContentLength = contentLength;
+    mElapsedMs = elapsedMs;
+  }
+
+  public int statusCode() {
+    return mStatusCode;
+  }
+
+  /**
+   * Determine if the status code is in the 2xx range
+   */
+  public boolean success() {
+    return mStatusCode >= 200 && mStatusCode < 300;
+  }
+
+  /**
+   * Get the response headers, as a list of alternating names and values
+   */
+  public List<String> headers() {
+    return mHeaders;
+  }
+
+  /**
+   * Get the value of the first header with a particular name (ignoring case),
+   * or null if there is none
+   */
+  public String header(String name) {
+    for (int i = 0; i < mHeaders.size(); i += 2) {
+      if (mHeaders.get(i).equalsIgnoreCase(name))
+        return mHeaders.get(i + 1);
+    }
+    return null;
+  }
+
+  /**
+   * Get the Content-Type header, or empty string if there is none
+   */
+  public String contentType() {
+    return nullToEmpty(header("Content-Type"));
+  }
+
+  /**
+   * Get the headers as a string, with each header on a separate line as
+   * "name:value"
+   */
+  public String headersString() {
+    return headersString(mHeaders);
+  }
+
+  /**
+   * Convert a list of alternating header names and values to a string, with
+   * each header on a separate line as "name:value"
+   */
+  public static String headersString(List<String> headers) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < headers.size(); i += 2) {
+      sb.append(headers.get(i));
+      sb.append(':');
+      sb.append(headers.get(i + 1));
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Parse a string produced by headersString() to a list of alternating header
+   * names and values
+   */
+  public static List<String> parseHeadersString(String string) {
+    List<String> headers = arrayList();
+    for (String line : split(string, '\n')) {
+      int colon = line.indexOf(':');
+      if (colon < 0)
+        continue;
+      headers.add(line.substring(0, colon));
+      headers.add(line.substring(colon + 1));
+    }
+    return headers;
+  }
+
+  public long contentLength() {
+    return mContentLength;
+  }
+
+  public long elapsedMs() {
+    return mElapsedMs;
+  }
+
+  @Override
+  public JSMap toJson() {
+    JSMap m = super.toJson();
+    m.put("status", mStatusCode);
+    JSList headers = list();
+    for (String s : mHeaders)
+      headers.add(s);
+    m.put("headers", headers);
+    m.put("content_length", mContentLength);
+    m.put("elapsed_ms", mElapsedMs);
+    return m;
+  }
+
+  private final int mStatusCode;
+  private final List<String> mHeaders;
+  private final long mContentLength;
+  private final long mElapsedMs;
+}
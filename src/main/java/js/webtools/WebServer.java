@@ -0,0 +1,430 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import js.base.BaseObject;
+import js.data.DataUtil;
+import js.webtools.WebRequest.Verb;
+
+/**
+ * An embedded http server (based upon com.sun.net.httpserver) that hosts
+ * OurServlets, each registered for a path prefix.
+ * 
+ * Requests are serviced by a bounded thread pool (or virtual threads, if
+ * available). A request is admitted before it is queued for a thread; requests
+ * in excess of the maximum number in flight (being serviced or waiting to be)
+ * are rejected with a 503 status, on a separate thread, so servlet code never
+ * runs on the server's dispatcher thread. Connections that have not yet been
+ * accepted wait in the (bounded) accept queue
+ */
+public final class WebServer extends BaseObject implements Closeable {
+
+  // ------------------------------------------------------------------
+  // Configuration
+  // ------------------------------------------------------------------
+
+  public WebServer withPort(int port) {
+    assertNotStarted();
+    checkArgument(port >= 0 && port < 65536, "bad port:", port);
+    mPort = port;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of pending connections that the operating system
+   * will queue before refusing them
+   */
+  public WebServer withBacklog(int backlog) {
+    assertNotStarted();
+    checkArgument(backlog > 0);
+    mBacklog = backlog;
+    return this;
+  }
+
+  /**
+   * Service requests with a bounded thread pool
+   * 
+   * @param threads
+   *          number of threads in the pool
+   * @param queueCapacity
+   *          number of requests that can wait for a thread
+   */
+  public WebServer withThreadPool(int threads, int queueCapacity) {
+    assertNotStarted();
+    checkArgument(threads > 0 && queueCapacity >= 0);
+    mThreads = threads;
+    mQueueCapacity = queueCapacity;
+    mExecutor = null;
+    return this;
+  }
+
+  /**
+   * Service each request on its own virtual thread, if they are available (Java
+   * 21 or later); otherwise, use the bounded thread pool
+   */
+  public WebServer useVirtualThreads() {
+    assertNotStarted();
+    mExecutor = WebRequestManager.virtualThreadExecutor();
+    if (mExecutor == null)
+      alert("virtual threads aren't available; using thread pool");
+    else
+      mOwnsExecutor = true;
+    return this;
+  }
+
+  /**
+   * Service requests with a particular executor. The caller is responsible for
+   * shutting it down
+   */
+  public WebServer withExecutor(Executor executor) {
+    assertNotStarted();
+    mExecutor = checkNotNull(executor);
+    mOwnsExecutor = false;
+    return this;
+  }
+
+  /**
+   * Set the maximum number of requests that can be in flight (being serviced,
+   * or waiting for a thread) at once; additional requests are rejected with a
+   * 503 status. Zero means no limit.
+   * 
+   * If the server uses its own thread pool, the limit is at most the pool's
+   * threads plus its queue capacity (which is also the default); otherwise, the
+   * default is no limit
+   */
+  public WebServer withMaxInFlight(int maxRequests) {
+    assertNotStarted();
+    checkArgument(maxRequests >= 0);
+    mMaxInFlight = maxRequests;
+    return this;
+  }
+
+  /**
+   * Set the time to wait for requests in progress to complete when the server
+   * is stopped
+   */
+  public WebServer withDrainTime(int seconds) {
+    assertNotStarted();
+    checkArgument(seconds >= 0);
+    mDrainTimeSeconds = seconds;
+    return this;
+  }
+
+  /**
+   * Tune how idle keep-alive connections are retained.
+   * 
+   * These are JVM-wide settings that com.sun.net.httpserver reads when the
+   * first server is created, so they must be set before then
+   * 
+   * @param idleSeconds
+   *          time after which an idle connection is closed
+   * @param maxIdleConnections
+   *          maximum number of idle connections to retain
+   */
+  public WebServer withKeepAlive(int idleSeconds, int maxIdleConnections) {
+    assertNotStarted();
+    checkArgument(idleSeconds > 0 && maxIdleConnections >= 0);
+    System.setProperty("sun.net.httpserver.idleInterval", Integer.toString(idleSeconds));
+    System.setProperty("sun.net.httpserver.maxIdleConnections", Integer.toString(maxIdleConnections));
+    return this;
+  }
+
+  /**
+   * Register a servlet to service requests whose paths start with a prefix.
+   * If more than one prefix matches a request's path, the longest one is used
+   */
+  public WebServer addServlet(String pathPrefix, OurServlet servlet) {
+    assertNotStarted();
+    WebTools.verifyPathPrefix(pathPrefix);
+    checkArgument(!mServlets.containsKey(pathPrefix), "path prefix already registered:", pathPrefix);
+    mServlets.put(pathPrefix, checkNotNull(servlet));
+    return this;
+  }
+
+  // ------------------------------------------------------------------
+  // Starting and stopping
+  // ------------------------------------------------------------------
+
+  /**
+   * Initialize the servlets and start accepting requests
+   */
+  public synchronized WebServer start() {
+    assertNotStarted();
+    checkState(!mServlets.isEmpty(), "no servlets registered");
+    int maxInFlight = mMaxInFlight;
+    if (mExecutor == null) {
+      // The pool's queue is bounded by the number of requests admitted
+      AtomicInteger threadNumber = new AtomicInteger();
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(mThreads, mThreads, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "WebServer " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+      pool.allowCoreThreadTimeOut(true);
+      mExecutor = pool;
+      mOwnsExecutor = true;
+      int poolCapacity = mThreads + mQueueCapacity;
+      if (maxInFlight <= 0 || maxInFlight > poolCapacity)
+        maxInFlight = poolCapacity;
+    }
+    Executor serverExecutor = mExecutor;
+    if (maxInFlight > 0) {
+      // If the rejection queue is full too, the dispatcher thread answers the request
+      // itself; it accepts no further connections meanwhile, so they wait in the backlog
+      mRejectionExecutor = new ThreadPoolExecutor(REJECTION_THREADS, REJECTION_THREADS, 0, TimeUnit.SECONDS,
+          new ArrayBlockingQueue<>(REJECTION_QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, "WebServer rejections");
+            thread.setDaemon(true);
+            return thread;
+          }, new ThreadPoolExecutor.CallerRunsPolicy());
+      serverExecutor = admittingExecutor(mExecutor, new Semaphore(maxInFlight), mRejectionExecutor);
+    }
+
+    for (OurServlet servlet : distinctServlets())
+      servlet.init();
+
+    try {
+      HttpServer server = HttpServer.create(new InetSocketAddress(mPort), mBacklog);
+      for (Map.Entry<String, OurServlet> entry : mServlets.entrySet()) {
+        OurServlet servlet = entry.getValue();
+        server.createContext(entry.getKey(), exchange -> handle(servlet, exchange));
+      }
+      server.setExecutor(serverExecutor);
+      server.start();
+      mServer = server;
+    } catch (IOException e) {
+      throw asRuntimeException(e);
+    }
+    log("started on port:", port());
+    return this;
+  }
+
+  /**
+   * Get the port the server is listening on (which is useful if it was
+   * started with port zero)
+   */
+  public int port() {
+    checkState(mServer != null, "server not started");
+    return mServer.getAddress().getPort();
+  }
+
+  /**
+   * Stop accepting requests, wait (up to the drain time) for requests in
+   * progress to complete, then destroy the servlets
+   */
+  public synchronized void stop() {
+    if (mServer == null || mStopped)
+      return;
+    mStopped = true;
+    log("stopping; draining requests for up to", mDrainTimeSeconds, "seconds");
+    mServer.stop(mDrainTimeSeconds);
+    if (mOwnsExecutor && mExecutor instanceof ExecutorService)
+      ((ExecutorService) mExecutor).shutdown();
+    if (mRejectionExecutor != null)
+      mRejectionExecutor.shutdown();
+    for (OurServlet servlet : distinctServlets())
+      servlet.destroy();
+  }
+
+  @Override
+  public void close() {
+    stop();
+  }
+
+  private List<OurServlet> distinctServlets() {
+    List<OurServlet> servlets = arrayList();
+    for (OurServlet servlet : mServlets.values())
+      if (!servlets.contains(servlet))
+        servlets.add(servlet);
+    return servlets;
+  }
+
+  private void assertNotStarted() {
+    checkState(mServer == null, "server already started");
+  }
+
+  // ------------------------------------------------------------------
+  // Servicing requests
+  // ------------------------------------------------------------------
+
+  /**
+   * Construct an executor for the HttpServer that admits each request (i.e.,
+   * acquires a permit) before queueing it for a thread. A request that can't be
+   * admitted is run on the rejection executor instead (or, if that is
+   * saturated, on the calling dispatcher thread), where it is answered with a
+   * 503 status
+   */
+  private static Executor admittingExecutor(Executor executor, Semaphore permits, Executor rejectionExecutor) {
+    return task -> {
+      if (!permits.tryAcquire()) {
+        rejectionExecutor.execute(() -> {
+          sRejecting.set(Boolean.TRUE);
+          try {
+            task.run();
+          } finally {
+            sRejecting.remove();
+          }
+        });
+        return;
+      }
+      try {
+        executor.execute(() -> {
+          try {
+            task.run();
+          } finally {
+            permits.release();
+          }
+        });
+      } catch (RuntimeException e) {
+        permits.release();
+        throw e;
+      }
+    };
+  }
+
+  // Set while a request that wasn't admitted is being handled
+  private static final ThreadLocal<Boolean> sRejecting = new ThreadLocal<>();
+
+  private void handle(OurServlet servlet, HttpExchange exchange) {
+    if (sRejecting.get() != null) {
+      reject(exchange);
+      return;
+    }
+    WebResponse response = null;
+    try {
+      if (!isSupportedMethod(exchange.getRequestMethod())) {
+        rejectMethod(exchange);
+        return;
+      }
+      response = WebResponse.build(exchange);
+      Deadline.Scope scope = response.enterDeadlineScope();
+      try {
+        servlet.serviceRequest(response);
+      } catch (Throwable t) {
+        response.storeError(null, t);
+      } finally {
+        scope.close();
+      }
+      if (!response.hasOutput() && !WebTools.hasError(response.outputArgs()))
+        response.setOutput("application/json", DataUtil.toByteArray(response.outputArgs().toString()));
+      response.writeResponse();
+    } catch (Throwable t) {
+      pr("Caught:", t);
+    } finally {
+      if (response != null)
+        response.deleteUploadedFiles();
+      exchange.close();
+    }
+  }
+
+  private static boolean isSupportedMethod(String method) {
+    for (Verb verb : Verb.values())
+      if (verb.name().equals(method))
+        return true;
+    return false;
+  }
+
+  /**
+   * Respond to a request whose method isn't supported: 405 for a standard
+   * method (e.g. HEAD), 501 for one we don't recognize
+   */
+  private static void rejectMethod(HttpExchange exchange) {
+    int statusCode = STANDARD_METHODS.contains(exchange.getRequestMethod()) ? SC_METHOD_NOT_ALLOWED
+        : SC_NOT_IMPLEMENTED;
+    try {
+      exchange.getResponseHeaders().set("Allow", ALLOWED_METHODS);
+      exchange.sendResponseHeaders(statusCode, -1);
+    } catch (IOException e) {
+      // The client has presumably gone away
+    }
+  }
+
+  private static final List<String> STANDARD_METHODS = Arrays.asList("GET", "HEAD", "POST", "PUT", "DELETE",
+      "CONNECT", "OPTIONS", "TRACE", "PATCH");
+  private static final String ALLOWED_METHODS;
+  static {
+    List<String> names = arrayList();
+    for (Verb verb : Verb.values())
+      names.add(verb.name());
+    ALLOWED_METHODS = String.join(", ", names);
+  }
+
+  private static void reject(HttpExchange exchange) {
+    try {
+      exchange.getResponseHeaders().set("Retry-After", "1");
+      exchange.sendResponseHeaders(SC_SERVICE_UNAVAILABLE, -1);
+    } catch (IOException e) {
+      // The client has presumably gone away
+    } finally {
+      exchange.close();
+    }
+  }
+
+  private static final int SC_METHOD_NOT_ALLOWED = 405;
+  private static final int SC_NOT_IMPLEMENTED = 501;
+  private static final int SC_SERVICE_UNAVAILABLE = 503;
+
+  private static final int REJECTION_THREADS = 2;
+  private static final int REJECTION_QUEUE_CAPACITY = 64;
+
+  private static final int DEFAULT_PORT = 8080;
+  private static final int DEFAULT_BACKLOG = 256;
+  private static final int DEFAULT_QUEUE_CAPACITY = 1000;
+  private static final int DEFAULT_DRAIN_TIME_SECONDS = 10;
+
+  private int mPort = DEFAULT_PORT;
+  private int mBacklog = DEFAULT_BACKLOG;
+  private int mThreads = Runtime.getRuntime().availableProcessors() * 8;
+  private int mQueueCapacity = DEFAULT_QUEUE_CAPACITY;
+  private int mMaxInFlight;
+  private int mDrainTimeSeconds = DEFAULT_DRAIN_TIME_SECONDS;
+  private Executor mExecutor;
+  private boolean mOwnsExecutor;
+  private final Map<String, OurServlet> mServlets = hashMap();
+  private ExecutorService mRejectionExecutor;
+  private HttpServer mServer;
+  private boolean mStopped;
+}
@@ -26,6 +26,8 @@ package js.webtools;
 
 import static js.base.Tools.*;
 
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
 
@@ -55,6 +57,8 @@ public final class WebTools {
   // Constants originally supplied by javax.servlet.http.HttpServletResponse
   public static final int SC_OK = 200;
   public static final int SC_BAD_REQUEST = 400;
+  public static final int SC_PAYLOAD_TOO_LARGE = 413;
+  public static final int SC_UNSUPPORTED_MEDIA_TYPE = 415;
   public static final int SC_INTERNAL_SERVER_ERROR = 500;
 
   /**
@@ -65,7 +69,9 @@ public final class WebTools {
     if (throwableOrNull != null) {
       Throwable t = throwableOrNull;
       httpStatusCode = SC_INTERNAL_SERVER_ERROR;
-      if (t instanceof IllegalArgumentException)
+      if (t instanceof HttpStatusException)
+        httpStatusCode = ((HttpStatusException) t).statusCode();
+      else if (t instanceof IllegalArgumentException)
         httpStatusCode = SC_BAD_REQUEST;
     }
     return httpStatusCode;
@@ -130,6 +136,215 @@ public final class WebTools {
     return "";
   }
 
+  // ------------------------------------------------------------------
+  // Query string and form encoding
+  // ------------------------------------------------------------------
+
+  /**
+   * Encode arguments as an application/x-www-form-urlencoded string, suitable
+   * for a query string or a form body.
+   * 
+   * String values are encoded as is; a JSList value produces a key=value pair
+   * for each of its elements; other values are encoded using their json
+   * representations
+   */
+  public static String encodeForm(JSMap args) {
+    StringBuilder sb = new StringBuilder(args.size() * 24);
+    appendEncodedForm(sb, args);
+    return sb.toString();
+  }
+
+  /**
+   * Append arguments, encoded as by encodeForm(), to a StringBuilder
+   */
+  public static void appendEncodedForm(StringBuilder sb, JSMap args) {
+    int start = sb.length();
+    for (String key : args.keySet()) {
+      Object value = args.getUnsafe(key);
+      if (value instanceof JSList) {
+        JSList list = (JSList) value;
+        for (int i = 0; i < list.size(); i++)
+          appendEncodedPair(sb, start, key, list.getUnsafe(i));
+      } else
+        appendEncodedPair(sb, start, key, value);
+    }
+  }
+
+  private static void appendEncodedPair(StringBuilder sb, int start, String key, Object value) {
+    if (sb.length() != start)
+      sb.append('&');
+    appendPercentEncoded(sb, key);
+    sb.append('=');
+    if (value != null)
+      appendPercentEncoded(sb, (value instanceof String) ? (String) value : value.toString());
+  }
+
+  /**
+   * Append a string to a StringBuilder, percent-encoding it as
+   * java.net.URLEncoder does (with UTF-8), but without constructing any
+   * intermediate strings or byte arrays
+   */
+  public static void appendPercentEncoded(StringBuilder sb, String text) {
+    int length = text.length();
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-' || c == '.'
+          || c == '_' || c == '*') {
+        sb.append(c);
+        continue;
+      }
+      if (c == ' ') {
+        sb.append('+');
+        continue;
+      }
+      int codePoint = c;
+      if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+        codePoint = Character.toCodePoint(c, text.charAt(i + 1));
+        i++;
+      } else if (Character.isSurrogate(c))
+        codePoint = '?';
+
+      if (codePoint < 0x80)
+        appendEncodedByte(sb, codePoint);
+      else if (codePoint < 0x800) {
+        appendEncodedByte(sb, 0xc0 | (codePoint >> 6));
+        appendEncodedByte(sb, 0x80 | (codePoint & 0x3f));
+      } else if (codePoint < 0x10000) {
+        appendEncodedByte(sb, 0xe0 | (codePoint >> 12));
+        appendEncodedByte(sb, 0x80 | ((codePoint >> 6) & 0x3f));
+        appendEncodedByte(sb, 0x80 | (codePoint & 0x3f));
+      } else {
+        appendEncodedByte(sb, 0xf0 | (codePoint >> 18));
+        appendEncodedByte(sb, 0x80 | ((codePoint >> 12) & 0x3f));
+        appendEncodedByte(sb, 0x80 | ((codePoint >> 6) & 0x3f));
+        appendEncodedByte(sb, 0x80 | (codePoint & 0x3f));
+      }
+    }
+  }
+
+  private static void appendEncodedByte(StringBuilder sb, int b) {
+    sb.append('%');
+    sb.append(HEX_DIGITS[(b >> 4) & 0xf]);
+    sb.append(HEX_DIGITS[b & 0xf]);
+  }
+
+  private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * Parse an application/x-www-form-urlencoded string (e.g., a raw query
+   * string) in a single pass, decoding its keys and values.
+   * 
+   * The values are stored as strings; if a key appears more than once, its
+   * values are stored in a JSList
+   */
+  public static JSMap parseForm(String encoded) {
+    JSMap map = map();
+    int length = encoded.length();
+    int start = 0;
+    while (start < length) {
+      int end = encoded.indexOf('&', start);
+      if (end < 0)
+        end = length;
+      if (end > start) {
+        int equals = encoded.indexOf('=', start);
+        String key;
+        String value;
+        if (equals < 0 || equals > end) {
+          key = percentDecode(encoded, start, end);
+          value = "";
+        } else {
+          key = percentDecode(encoded, start, equals);
+          value = percentDecode(encoded, equals + 1, end);
+        }
+        putOrAppend(map, key, value);
+      }
+      start = end + 1;
+    }
+    return map;
+  }
+
+  /**
+   * Store a value in a map; if the map already has a value for the key, store
+   * the values in a JSList
+   */
+  public static void putOrAppend(JSMap map, String key, Object value) {
+    Object currentValue = map.optUnsafe(key);
+    if (currentValue == null)
+      map.putUnsafe(key, value);
+    else if (currentValue instanceof JSList)
+      ((JSList) currentValue).addUnsafe(value);
+    else
+      map.put(key, list().addUnsafe(currentValue).addUnsafe(value));
+  }
+
+  /**
+   * Decode a percent-encoded substring (with '+' representing a space).
+   * Malformed escape sequences are left as they are
+   */
+  public static String percentDecode(String text, int start, int end) {
+    int i = start;
+    while (i < end) {
+      char c = text.charAt(i);
+      if (c == '%' || c == '+')
+        break;
+      i++;
+    }
+    // Avoid any decoding work if there are no escapes
+    if (i == end)
+      return text.substring(start, end);
+
+    byte[] bytes = new byte[(end - start) * 3];
+    int length = 0;
+    for (i = start; i < end; i++) {
+      char c = text.charAt(i);
+      if (c == '+')
+        bytes[length++] = ' ';
+      else if (c == '%' && i + 2 < end && hexValue(text.charAt(i + 1)) >= 0
+          && hexValue(text.charAt(i + 2)) >= 0) {
+        bytes[length++] = (byte) ((hexValue(text.charAt(i + 1)) << 4) | hexValue(text.charAt(i + 2)));
+        i += 2;
+      } else if (c < 0x80)
+        bytes[length++] = (byte) c;
+      else {
+        // A character that should have been encoded; store its UTF-8 representation
+        int charCount = Character.charCount(text.codePointAt(i));
+        byte[] encoded = text.substring(i, Math.min(end, i + charCount)).getBytes(StandardCharsets.UTF_8);
+        System.arraycopy(encoded, 0, bytes, length, encoded.length);
+        length += encoded.length;
+        i += charCount - 1;
+      }
+    }
+    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+  }
+
+  private static int hexValue(char c) {
+    if (c >= '0' && c <= '9')
+      return c - '0';
+    if (c >= 'a' && c <= 'f')
+      return c - 'a' + 10;
+    if (c >= 'A' && c <= 'F')
+      return c - 'A' + 10;
+    return -1;
+  }
+
+  /**
+   * Append an encoded query string to a URI's existing query (if any)
+   */
+  public static URI appendQuery(URI uri, String encodedQuery) {
+    if (encodedQuery.isEmpty())
+      return uri;
+    String uriString = uri.toString();
+    int queryEnd = uriString.length();
+    if (uri.getRawFragment() != null)
+      queryEnd = uriString.lastIndexOf('#');
+    StringBuilder sb = new StringBuilder(uriString.length() + encodedQuery.length() + 1);
+    sb.append(uriString, 0, queryEnd);
+    sb.append(uri.getRawQuery() == null ? '?' : '&');
+    sb.append(encodedQuery);
+    sb.append(uriString, queryEnd, uriString.length());
+    return URI.create(sb.toString());
+  }
+
   public static String verifyPathPrefix(String pathPrefix) {
     if (!pathPrefix.startsWith("/"))
       throw new IllegalArgumentException("path prefix doesn't start with slash: '" + pathPrefix + "'");
@@ -0,0 +1,72 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static js.base.Tools.*;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.Test;
+
+import js.json.JSMap;
+
+public class MultipartParserTest {
+
+  @Test
+  public void closingDelimiterFollowedByCrlf() throws IOException {
+    JSMap args = parse(FIELD_PART + "--XyZ--\r\n");
+    assertEquals("hello", args.opt("alpha", ""));
+  }
+
+  @Test
+  public void closingDelimiterAtEndOfBody() throws IOException {
+    JSMap args = parse(FIELD_PART + "--XyZ--");
+    assertEquals("hello", args.opt("alpha", ""));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void missingClosingDelimiter() throws IOException {
+    parse(FIELD_PART + "--XyZ");
+  }
+
+  private static JSMap parse(String body) throws IOException {
+    JSMap args = map();
+    List<File> createdFiles = arrayList();
+    new MultipartParser(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), "XyZ").parse(args,
+        createdFiles);
+    return args;
+  }
+
+  private static final String FIELD_PART = "--XyZ\r\n" //
+      + "Content-Disposition: form-data; name=\"alpha\"\r\n" //
+      + "\r\n" //
+      + "hello\r\n";
+
+}
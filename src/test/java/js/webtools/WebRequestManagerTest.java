@@ -0,0 +1,60 @@
+/**
+ * MIT License
+ * 
+ * Copyright (c) 2021 Jeff Sember
+ * 
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ * 
+ **/
+package js.webtools;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class WebRequestManagerTest {
+
+  @Test
+  public void batchRequestsInheritCallersDeadline() {
+    WebRequestManager manager = new WebRequestManager() {
+      @Override
+      public String makeRequest(WebRequest request) {
+        return "{}";
+      }
+    };
+    // More requests than the concurrency limit, so most are sent from pool threads
+    List<WebRequest> requests = new ArrayList<>();
+    for (int i = 0; i < 10; i++)
+      requests.add(WebRequest.build(manager, "http://example.com/item" + i));
+
+    Deadline.Scope scope = Deadline.enter(System.currentTimeMillis() + 60000);
+    try {
+      manager.executeAll(requests, 2);
+    } finally {
+      scope.close();
+    }
+
+    for (WebRequest request : requests)
+      assertTrue("no deadline: " + request.uri(), request.hasDeadline());
+  }
+
+}